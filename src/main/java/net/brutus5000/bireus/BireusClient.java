@@ -3,6 +3,8 @@ package net.brutus5000.bireus;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 import net.brutus5000.bireus.data.Repository;
+import net.brutus5000.bireus.patching.ChecksumAlgorithm;
+import net.brutus5000.bireus.patching.ChecksumIndex;
 import net.brutus5000.bireus.service.*;
 import org.apache.commons.io.FileUtils;
 import org.jgrapht.io.ImportException;
@@ -12,6 +14,11 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 @Slf4j
 public class BireusClient {
@@ -67,8 +74,15 @@ public class BireusClient {
             Path temporaryDirectory = Files.createTempDirectory("bireus_");
             downloadService.download(latestVersionURL, temporaryDirectory.resolve(Repository.BIREUS_LATEST_VERSION_ARCHIVE));
 
-            ArchiveService.extractTarXz(temporaryDirectory.resolve(Repository.BIREUS_LATEST_VERSION_ARCHIVE), path);
+            Map<String, Long> checksums = new HashMap<>();
+            ArchiveService.extractTarXz(temporaryDirectory.resolve(Repository.BIREUS_LATEST_VERSION_ARCHIVE), path,
+                    ArchiveService.writeChecksummed(null, ChecksumAlgorithm.CRC32, path, checksums));
             FileUtils.deleteDirectory(temporaryDirectory.toFile());
+
+            log.debug("Write new {}", Repository.BIREUS_CHECKSUM_INDEX_FILE);
+            ChecksumIndex.fromExtractedFiles(path, ChecksumAlgorithm.CRC32, checksums).write(path
+                    .resolve(Repository.BIREUS_INTERAL_FOLDER)
+                    .resolve(Repository.BIREUS_CHECKSUM_INDEX_FILE));
             return new BireusClient(path, patchEventListener, downloadService);
         } catch (IOException e) {
             FileUtils.deleteQuietly(path.toFile());
@@ -76,6 +90,13 @@ public class BireusClient {
         }
     }
 
+    /**
+     * @return the mutable settings used for all following checkouts
+     */
+    public CheckoutSettings getSettings() {
+        return repositoryService.getSettings();
+    }
+
     public boolean checkVersionExists(String version) {
         return repositoryService.checkVersionExists(version);
     }
@@ -95,4 +116,72 @@ public class BireusClient {
             throw new BireusException(MessageFormat.format("Error on checking out version {0}", version), e);
         }
     }
+
+    /**
+     * Checks out the latest version without blocking the calling thread,
+     * the checkout runs on the {@link CheckoutSettings#getCheckoutExecutor()}
+     *
+     * @return completes when the version is checked out, cancelling it aborts the running checkout
+     */
+    public CompletableFuture<Void> checkoutLatestVersionAsync() {
+        return CheckoutFuture.start(() -> {
+            checkoutLatestVersion();
+            return null;
+        }, getCheckoutExecutor());
+    }
+
+    /**
+     * Checks out the version without blocking the calling thread,
+     * the checkout runs on the {@link CheckoutSettings#getCheckoutExecutor()}
+     *
+     * @return completes when the version is checked out, cancelling it aborts the running checkout
+     */
+    public CompletableFuture<Void> checkoutVersionAsync(String version) {
+        return CheckoutFuture.start(() -> {
+            checkoutVersion(version);
+            return null;
+        }, getCheckoutExecutor());
+    }
+
+    private Executor getCheckoutExecutor() {
+        CheckoutSettings settings = getSettings();
+        return settings.getCheckoutExecutor() != null ? settings.getCheckoutExecutor() : settings.getThreadMode().getSharedExecutor();
+    }
+
+    /**
+     * @return the disk usage of the downloaded patches and the patches deleted by the retention policy
+     */
+    public PatchStatistics getPatchStatistics() throws BireusException {
+        try {
+            return repositoryService.getPatchStatistics();
+        } catch (IOException e) {
+            throw new BireusException("Error on reading the patch statistics", e);
+        }
+    }
+
+    /**
+     * Checks all files of the current version against the checksums of the last checkout
+     *
+     * @return the files that are missing or modified
+     */
+    public List<Path> verify() throws BireusException {
+        try {
+            return repositoryService.verify();
+        } catch (IOException e) {
+            throw new BireusException("Error on verifying the repository", e);
+        }
+    }
+
+    /**
+     * Checks all files of the current version and downloads only the missing or modified files
+     *
+     * @return the repaired files
+     */
+    public List<Path> repair() throws BireusException {
+        try {
+            return repositoryService.repair();
+        } catch (IOException e) {
+            throw new BireusException("Error on repairing the repository", e);
+        }
+    }
 }
@@ -0,0 +1,201 @@
+package net.brutus5000.bireus;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import net.brutus5000.bireus.service.CheckoutFuture;
+import net.brutus5000.bireus.service.CheckoutSettings;
+import net.brutus5000.bireus.service.HttpDownloadService;
+import net.brutus5000.bireus.service.RateLimiter;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the checkouts of many repositories concurrently under global limits.
+ * <ul>
+ * <li>At most maxConcurrentCheckouts checkouts run at once, queued checkouts start by priority.</li>
+ * <li>The CPU workers are split evenly among the concurrent checkouts, i.e. they cap the patch and decompression
+ * threads of each checkout. Download threads (prefetch, fallback downloads and download segments) are not counted,
+ * since they mostly wait for the network.</li>
+ * <li>All scheduled repositories share one disk write limit for patched files.</li>
+ * <li>The download limit is not applied automatically: it only applies to the {@link HttpDownloadService}s
+ * the {@link #getDownloadLimiter()} is set on.</li>
+ * </ul>
+ * The limits are set on the {@link CheckoutSettings} of a client while its scheduled checkout runs,
+ * the previous settings are restored afterwards.
+ */
+@Slf4j
+public class UpdateScheduler implements AutoCloseable {
+    @Getter
+    private final int maxConcurrentCheckouts;
+    @Getter
+    private final int cpuWorkers;
+    /** Shared download bandwidth limit, set it on the download services of the scheduled clients. */
+    @Getter
+    private final RateLimiter downloadLimiter;
+    @Getter
+    private final RateLimiter diskWriteLimiter;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Set<CompletableFuture<Void>> pendingCheckouts = ConcurrentHashMap.newKeySet();
+    /** The settings of the running checkouts, guarded by itself. Keyed by identity, since settings are mutable. */
+    private final Map<CheckoutSettings, AppliedLimits> appliedLimits = new IdentityHashMap<>();
+
+    /***
+     * @param maxConcurrentCheckouts maximum number of checkouts running at once
+     * @param cpuWorkers total number of patch and decompression threads of all running checkouts
+     * @param downloadBytesPerSecond total download bandwidth, 0 for no limit
+     * @param diskWriteBytesPerSecond total write throughput of patching and extraction, 0 for no limit
+     */
+    public UpdateScheduler(int maxConcurrentCheckouts, int cpuWorkers, long downloadBytesPerSecond, long diskWriteBytesPerSecond) {
+        this.maxConcurrentCheckouts = Math.max(1, maxConcurrentCheckouts);
+        this.cpuWorkers = Math.max(1, cpuWorkers);
+        this.downloadLimiter = new RateLimiter(downloadBytesPerSecond);
+        this.diskWriteLimiter = new RateLimiter(diskWriteBytesPerSecond);
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(this.maxConcurrentCheckouts, this.maxConcurrentCheckouts, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "bireus-scheduler-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /***
+     * Queues the checkout of the latest version
+     * @param client the repository to update
+     * @param priority checkouts with a higher priority start first, equal priorities start in order of scheduling
+     * @return completes when the version is checked out, cancelling it removes a queued checkout or aborts a running one
+     */
+    public CompletableFuture<Void> scheduleLatestVersion(BireusClient client, int priority) {
+        return schedule(client, priority, () -> {
+            client.checkoutLatestVersion();
+            return null;
+        });
+    }
+
+    /***
+     * Queues the checkout of a version
+     * @param client the repository to update
+     * @param version the version to check out
+     * @param priority checkouts with a higher priority start first, equal priorities start in order of scheduling
+     * @return completes when the version is checked out, cancelling it removes a queued checkout or aborts a running one
+     */
+    public CompletableFuture<Void> scheduleVersion(BireusClient client, String version, int priority) {
+        return schedule(client, priority, () -> {
+            client.checkoutVersion(version);
+            return null;
+        });
+    }
+
+    private CompletableFuture<Void> schedule(BireusClient client, int priority, CheckoutFuture.Task<Void> checkout) {
+        long order = sequence.getAndIncrement();
+        log.debug("Scheduling checkout #{} with priority {}", order, priority);
+        CompletableFuture<Void> future = CheckoutFuture.start(() -> {
+            CheckoutSettings settings = client.getSettings();
+            applyLimits(settings);
+            try {
+                return checkout.call();
+            } finally {
+                restoreLimits(settings);
+            }
+        }, runnable -> executor.execute(new Job(priority, order, runnable)));
+        pendingCheckouts.add(future);
+        future.whenComplete((result, throwable) -> pendingCheckouts.remove(future));
+        return future;
+    }
+
+    /***
+     * Sets the limits on the settings, concurrent checkouts of the same client share them
+     */
+    private void applyLimits(CheckoutSettings settings) {
+        synchronized (appliedLimits) {
+            AppliedLimits limits = appliedLimits.get(settings);
+            if (limits == null) {
+                limits = new AppliedLimits(settings);
+                appliedLimits.put(settings, limits);
+
+                int threadsPerCheckout = Math.max(1, cpuWorkers / maxConcurrentCheckouts);
+                settings.setPatchThreads(threadsPerCheckout);
+                settings.setDecompressionThreads(threadsPerCheckout);
+                settings.setDiskWriteLimiter(diskWriteLimiter);
+            }
+            limits.checkouts++;
+        }
+    }
+
+    /***
+     * Restores the previous settings once the last running checkout of the client finished
+     */
+    private void restoreLimits(CheckoutSettings settings) {
+        synchronized (appliedLimits) {
+            AppliedLimits limits = appliedLimits.get(settings);
+            if (--limits.checkouts == 0) {
+                appliedLimits.remove(settings);
+                settings.setPatchThreads(limits.patchThreads);
+                settings.setDecompressionThreads(limits.decompressionThreads);
+                settings.setDiskWriteLimiter(limits.diskWriteLimiter);
+            }
+        }
+    }
+
+    /**
+     * Cancels all queued checkouts and interrupts the running ones
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        pendingCheckouts.forEach(future -> future.cancel(true));
+    }
+
+    /**
+     * The settings of a client before the limits were applied
+     */
+    private static class AppliedLimits {
+        private final int patchThreads;
+        private final int decompressionThreads;
+        private final RateLimiter diskWriteLimiter;
+        private int checkouts;
+
+        AppliedLimits(CheckoutSettings settings) {
+            this.patchThreads = settings.getPatchThreads();
+            this.decompressionThreads = settings.getDecompressionThreads();
+            this.diskWriteLimiter = settings.getDiskWriteLimiter();
+        }
+    }
+
+    private static class Job implements Runnable, Comparable<Job> {
+        private final int priority;
+        private final long order;
+        private final Runnable runnable;
+
+        Job(int priority, long order, Runnable runnable) {
+            this.priority = priority;
+            this.order = order;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+}
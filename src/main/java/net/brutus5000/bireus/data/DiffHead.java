@@ -15,6 +15,8 @@ public class DiffHead {
     private String baseVersion;
     @JsonProperty("target_version")
     private String targetVersion;
+    @JsonProperty(value = "checksum", required = false)
+    private String checksumAlgorithm;
     @JsonProperty("items")
     private Collection<DiffItem> items;
 }
@@ -6,6 +6,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 import lombok.SneakyThrows;
 
+import java.net.URI;
 import java.net.URL;
 import java.nio.file.Path;
 import java.text.MessageFormat;
@@ -18,6 +19,8 @@ public class Repository {
     public static final String BIREUS_TMP_SUBFOLDER = "__temp__";
     public static final String BIREUS_INFO_FILE = "info.json";
     public static final String BIREUS_VERSIONS_FILE = "versions.gml";
+    public static final String BIREUS_JOURNAL_FILE = "journal.json";
+    public static final String BIREUS_CHECKSUM_INDEX_FILE = "checksums.json";
     public static final String BIREUS_PATCH_FILE_PATTERN = "{0}_to_{1}.tar.xz";
     public static final String BIREUS_LATEST_VERSION_ARCHIVE = "latest.tar.xz";
 
@@ -62,6 +65,24 @@ public class Repository {
                 .resolve(BIREUS_VERSIONS_FILE);
     }
 
+    /**
+     * @return Path to the journal of an in-place checkout
+     */
+    public Path getJournalPath() {
+        return absolutePath
+                .resolve(BIREUS_INTERAL_FOLDER)
+                .resolve(BIREUS_JOURNAL_FILE);
+    }
+
+    /**
+     * @return Path to the checksum index of the checked out files
+     */
+    public Path getChecksumIndexPath() {
+        return absolutePath
+                .resolve(BIREUS_INTERAL_FOLDER)
+                .resolve(BIREUS_CHECKSUM_INDEX_FILE);
+    }
+
     /**
      * @return URL to the remote versions.gml
      */
@@ -70,6 +91,24 @@ public class Repository {
         return new URL(url + "/" + BIREUS_VERSIONS_FILE);
     }
 
+    /**
+     * @return URL to the remote archive of the latest version
+     */
+    @SneakyThrows
+    public URL getRemoteLatestVersionURL() {
+        return new URL(url + "/" + BIREUS_LATEST_VERSION_ARCHIVE);
+    }
+
+    /**
+     * @param version      version of the file
+     * @param relativePath path of the file inside the repository, separated by '/'
+     * @return URL to the file in the remote version folder
+     */
+    @SneakyThrows
+    public URL getRemoteFileURL(String version, String relativePath) {
+        return new URL(url + "/" + version + "/" + new URI(null, null, relativePath, null).getRawPath());
+    }
+
     /**
      * @param fromVersion base version
      * @param toVersion   target version
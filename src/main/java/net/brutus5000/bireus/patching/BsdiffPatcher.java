@@ -0,0 +1,285 @@
+package net.brutus5000.bireus.patching;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+/**
+ * Applies bsdiff4 (BSDIFF40) patches with a constant heap usage.
+ * The old file is read with positional reads into a small buffer, the control, diff and extra blocks of the patch
+ * are decompressed while the new file is written.
+ * <p>
+ * The old file is deliberately not memory-mapped: Java 8 can't unmap a file, and on Windows a mapped file can't be
+ * deleted or replaced until the mapping is garbage collected, which breaks replacing the old file after patching.
+ * <p>
+ * The checksum of the old file is computed from the reads for patching: bsdiff mostly reads the old file forward,
+ * so the bytes are checksummed in order as they are read. Only the parts the patch skips are read separately.
+ */
+public final class BsdiffPatcher {
+    private static final byte[] MAGIC = "BSDIFF40".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private BsdiffPatcher() {
+    }
+
+    /***
+     * Applies a bsdiff4 patch onto the old file
+     * @param oldFile the base file
+     * @param patch the bsdiff4 patch
+     * @param outputStream receives the new file
+     * @throws IOException on reading or writing errors and on corrupt patches
+     */
+    public static void patch(Path oldFile, PatchSource patch, OutputStream outputStream) throws IOException {
+        patch(oldFile, patch, outputStream, ChecksumAlgorithm.CRC32, null);
+    }
+
+    /***
+     * Applies a bsdiff4 patch onto the old file
+     * The checksum of the old file is verified after the new file is written, so the caller has to discard
+     * the output if the verifier rejects the old file
+     * @param oldFile the base file
+     * @param patch the bsdiff4 patch
+     * @param outputStream receives the new file
+     * @param checksumAlgorithm the algorithm of the checksum passed to the oldFileVerifier
+     * @param oldFileVerifier receives the checksum of the old file after patching, may be null
+     * @throws IOException on reading or writing errors, on corrupt patches and if the verifier rejects the old file
+     */
+    public static void patch(Path oldFile, PatchSource patch, OutputStream outputStream,
+                             ChecksumAlgorithm checksumAlgorithm, OldFileVerifier oldFileVerifier) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        try (InputStream headerStream = patch.open(0)) {
+            IOUtils.readFully(headerStream, header);
+        }
+
+        if (!Arrays.equals(MAGIC, Arrays.copyOf(header, MAGIC.length))) {
+            throw new IOException("Invalid bsdiff4 patch - wrong header");
+        }
+
+        long controlLength = readOffset(header, 8);
+        long diffLength = readOffset(header, 16);
+        long newSize = readOffset(header, 24);
+        if (controlLength < 0 || diffLength < 0 || newSize < 0) {
+            throw new IOException("Invalid bsdiff4 patch - negative block length");
+        }
+
+        try (FileChannel oldChannel = FileChannel.open(oldFile, StandardOpenOption.READ);
+             InputStream controlStream = decompress(patch.open(HEADER_SIZE));
+             InputStream diffStream = decompress(patch.open(HEADER_SIZE + controlLength));
+             InputStream extraStream = decompress(patch.open(HEADER_SIZE + controlLength + diffLength))) {
+
+            long oldSize = oldChannel.size();
+            OldFileChecksum oldFileChecksum = oldFileVerifier == null ? null : new OldFileChecksum(checksumAlgorithm, oldChannel, oldSize);
+
+            byte[] control = new byte[24];
+            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] oldBuffer = new byte[BUFFER_SIZE];
+            long oldPosition = 0;
+            long newPosition = 0;
+
+            while (newPosition < newSize) {
+                IOUtils.readFully(controlStream, control);
+                long diffBytes = readOffset(control, 0);
+                long extraBytes = readOffset(control, 8);
+                long seek = readOffset(control, 16);
+
+                if (diffBytes < 0 || extraBytes < 0 || newPosition + diffBytes + extraBytes > newSize) {
+                    throw new IOException(MessageFormat.format("Invalid bsdiff4 patch - corrupt control block at {0}", newPosition));
+                }
+
+                // the diff block holds the byte-wise difference to the old file
+                for (long remaining = diffBytes; remaining > 0; ) {
+                    int count = (int) Math.min(remaining, buffer.length);
+                    IOUtils.readFully(diffStream, buffer, 0, count);
+                    addOldBytes(oldChannel, oldSize, oldPosition, buffer, oldBuffer, count, oldFileChecksum);
+                    outputStream.write(buffer, 0, count);
+                    oldPosition += count;
+                    remaining -= count;
+                }
+                newPosition += diffBytes;
+
+                // the extra block holds new data that is not based on the old file
+                for (long remaining = extraBytes; remaining > 0; ) {
+                    int count = (int) Math.min(remaining, buffer.length);
+                    IOUtils.readFully(extraStream, buffer, 0, count);
+                    outputStream.write(buffer, 0, count);
+                    remaining -= count;
+                }
+                newPosition += extraBytes;
+
+                oldPosition += seek;
+            }
+
+            if (oldFileVerifier != null) {
+                oldFileVerifier.verify(oldFileChecksum.finish());
+            }
+        }
+    }
+
+    private static InputStream decompress(InputStream inputStream) throws IOException {
+        try {
+            return new BZip2CompressorInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE));
+        } catch (IOException e) {
+            inputStream.close();
+            throw new IOException("Invalid bsdiff4 patch - block is not bzip2 compressed", e);
+        }
+    }
+
+    /***
+     * Adds the old file bytes at oldPosition to the buffer, positions outside the old file are treated as 0
+     * @param oldBuffer receives the old file bytes, at least as big as count
+     * @param oldFileChecksum receives the old file bytes, may be null
+     */
+    private static void addOldBytes(FileChannel oldChannel, long oldSize, long oldPosition, byte[] buffer, byte[] oldBuffer, int count,
+                                    OldFileChecksum oldFileChecksum) throws IOException {
+        int start = (int) Math.max(0, Math.min(count, -oldPosition));
+        int end = (int) Math.max(0, Math.min(count, oldSize - oldPosition));
+        if (start >= end) {
+            return;
+        }
+
+        ByteBuffer oldBytes = ByteBuffer.wrap(oldBuffer, start, end - start);
+        while (oldBytes.hasRemaining()) {
+            if (oldChannel.read(oldBytes, oldPosition + oldBytes.position()) < 0) {
+                throw new IOException("Old file was truncated while patching");
+            }
+        }
+
+        if (oldFileChecksum != null) {
+            oldFileChecksum.update(oldPosition + start, oldBuffer, start, end - start);
+        }
+
+        for (int i = start; i < end; i++) {
+            buffer[i] += oldBuffer[i];
+        }
+    }
+
+    /***
+     * Reads a bsdiff offset: 64 bit little endian with the sign in the highest bit
+     */
+    private static long readOffset(byte[] buffer, int offset) {
+        long value = buffer[offset + 7] & 0x7F;
+        for (int i = 6; i >= 0; i--) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return (buffer[offset + 7] & 0x80) != 0 ? -value : value;
+    }
+
+    /**
+     * Checksums the old file in order, from the bytes read for patching wherever possible
+     */
+    private static final class OldFileChecksum {
+        private final ChecksumAlgorithm checksumAlgorithm;
+        private final Checksum checksum;
+        private final FileChannel oldChannel;
+        private final long oldSize;
+        /** All bytes before this position are checksummed. */
+        private long position;
+        private byte[] gapBuffer;
+
+        OldFileChecksum(ChecksumAlgorithm checksumAlgorithm, FileChannel oldChannel, long oldSize) {
+            this.checksumAlgorithm = checksumAlgorithm;
+            this.checksum = checksumAlgorithm.create();
+            this.oldChannel = oldChannel;
+            this.oldSize = oldSize;
+        }
+
+        /***
+         * Offers bytes read from the old file, bytes before the checksummed position are ignored
+         * @param oldPosition position of the bytes in the old file
+         */
+        void update(long oldPosition, byte[] bytes, int offset, int length) throws IOException {
+            if (oldPosition > position) {
+                if (oldPosition - position > BUFFER_SIZE) {
+                    // a long jump ahead: later reads may still cover the gap, finish() reads the rest
+                    return;
+                }
+                readUntil(oldPosition);
+            }
+
+            long skip = position - oldPosition;
+            if (skip < length) {
+                checksumAlgorithm.update(checksum, ByteBuffer.wrap(bytes, offset + (int) skip, length - (int) skip));
+                position = oldPosition + length;
+            }
+        }
+
+        /***
+         * @return the checksum of the old file, the bytes that were not read for patching are read now
+         */
+        long finish() throws IOException {
+            readUntil(oldSize);
+            return checksum.getValue();
+        }
+
+        private void readUntil(long end) throws IOException {
+            if (gapBuffer == null) {
+                gapBuffer = new byte[BUFFER_SIZE];
+            }
+
+            while (position < end) {
+                ByteBuffer gap = ByteBuffer.wrap(gapBuffer, 0, (int) Math.min(gapBuffer.length, end - position));
+                while (gap.hasRemaining()) {
+                    if (oldChannel.read(gap, position + gap.position()) < 0) {
+                        throw new IOException("Old file was truncated while patching");
+                    }
+                }
+                gap.flip();
+                checksumAlgorithm.update(checksum, gap);
+                position += gap.limit();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    public interface OldFileVerifier {
+        /***
+         * @param checksum the checksum of the old file
+         * @throws IOException to abort patching
+         */
+        void verify(long checksum) throws IOException;
+    }
+
+    /**
+     * Provides independent streams on the patch, since the blocks of the patch are read simultaneously
+     */
+    @FunctionalInterface
+    public interface PatchSource {
+        InputStream open(long offset) throws IOException;
+
+        static PatchSource of(Path patchFile) {
+            return offset -> {
+                FileChannel channel = FileChannel.open(patchFile, StandardOpenOption.READ);
+                try {
+                    return Channels.newInputStream(channel.position(offset));
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+            };
+        }
+
+        static PatchSource of(byte[] patchData) {
+            return offset -> {
+                if (offset > patchData.length) {
+                    throw new IOException("Invalid bsdiff4 patch - block exceeds patch");
+                }
+                return new ByteArrayInputStream(patchData, (int) offset, patchData.length - (int) offset);
+            };
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package net.brutus5000.bireus.patching;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.zip.Checksum;
+
+/**
+ * The checksum algorithms a patch descriptor can use for its base and target checksums.
+ * Checksums are written as hex strings with a leading "0x" in the descriptor.
+ */
+@Slf4j
+public enum ChecksumAlgorithm {
+    @JsonProperty("crc32")
+    CRC32 {
+        @Override
+        public Checksum create() {
+            return new java.util.zip.CRC32();
+        }
+
+        @Override
+        void update(Checksum checksum, ByteBuffer buffer) {
+            ((java.util.zip.CRC32) checksum).update(buffer);
+        }
+    },
+    /**
+     * Hardware-accelerated on current CPUs, but only available on Java 9 and newer
+     */
+    @JsonProperty("crc32c")
+    CRC32C {
+        @Override
+        public Checksum create() {
+            if (!isSupported()) {
+                throw new UnsupportedOperationException("CRC32C requires Java 9 or newer");
+            }
+            try {
+                return (Checksum) Crc32cHolder.CRC32C_CLASS.newInstance();
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new IllegalStateException("CRC32C can't be instantiated", e);
+            }
+        }
+
+        @Override
+        void update(Checksum checksum, ByteBuffer buffer) {
+            try {
+                Crc32cHolder.UPDATE_METHOD.invoke(checksum, buffer);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException("CRC32C can't be updated", e);
+            }
+        }
+
+        @Override
+        public boolean isSupported() {
+            return Crc32cHolder.CRC32C_CLASS != null;
+        }
+    };
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    /***
+     * @return a new checksum instance of this algorithm
+     * @throws UnsupportedOperationException if the algorithm is not supported by the Java runtime
+     */
+    public abstract Checksum create();
+
+    abstract void update(Checksum checksum, ByteBuffer buffer);
+
+    /***
+     * @return true if the algorithm is available in this Java runtime
+     */
+    public boolean isSupported() {
+        return true;
+    }
+
+    /***
+     * Computes the checksum of a file, it is read through a large direct buffer
+     * @param file the file
+     * @return the checksum value
+     * @throws IOException on reading errors
+     */
+    public long checksum(Path file) throws IOException {
+        Checksum checksum = create();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                update(checksum, buffer);
+                buffer.clear();
+            }
+        }
+        return checksum.getValue();
+    }
+
+    /***
+     * @param value a checksum value
+     * @return the value as hex string in the descriptor format
+     */
+    public static String format(long value) {
+        return "0x" + Long.toHexString(value);
+    }
+
+    /***
+     * @param value a checksum of the descriptor
+     * @return the checksum value, or null if the string is no checksum (e.g. for zip files)
+     */
+    public static Long parse(String value) {
+        if (value == null || !value.startsWith("0x") || value.length() == 2) {
+            return null;
+        }
+
+        try {
+            return Long.parseUnsignedLong(value.substring(2), 16);
+        } catch (NumberFormatException e) {
+            log.debug("Invalid checksum `{}`", value, e);
+            return null;
+        }
+    }
+
+    /***
+     * @param name the name of the algorithm as written in the descriptor, null for the default CRC32
+     * @return the matching algorithm
+     * @throws IOException if the algorithm is unknown or not supported by the Java runtime
+     */
+    public static ChecksumAlgorithm fromDescriptor(String name) throws IOException {
+        if (name == null) {
+            return CRC32;
+        }
+
+        for (ChecksumAlgorithm algorithm : values()) {
+            if (algorithm.name().equalsIgnoreCase(name)) {
+                if (!algorithm.isSupported()) {
+                    throw new IOException(MessageFormat.format("Checksum algorithm `{0}` is not supported by this Java runtime", name));
+                }
+                return algorithm;
+            }
+        }
+        throw new IOException(MessageFormat.format("Unknown checksum algorithm `{0}`", name));
+    }
+
+    /**
+     * Looks up the CRC32C implementation lazily, since it is missing before Java 9
+     */
+    private static class Crc32cHolder {
+        static final Class<?> CRC32C_CLASS;
+        static final Method UPDATE_METHOD;
+
+        static {
+            Class<?> crc32cClass = null;
+            Method updateMethod = null;
+            try {
+                crc32cClass = Class.forName("java.util.zip.CRC32C");
+                updateMethod = crc32cClass.getMethod("update", ByteBuffer.class);
+            } catch (ClassNotFoundException | NoSuchMethodException e) {
+                log.debug("CRC32C is not available", e);
+                crc32cClass = null;
+            }
+            CRC32C_CLASS = crc32cClass;
+            UPDATE_METHOD = updateMethod;
+        }
+    }
+}
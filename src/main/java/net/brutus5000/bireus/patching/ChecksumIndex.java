@@ -0,0 +1,235 @@
+package net.brutus5000.bireus.patching;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import lombok.val;
+import net.brutus5000.bireus.data.DiffItem;
+import net.brutus5000.bireus.data.IoType;
+import net.brutus5000.bireus.data.PatchAction;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers the checksums of the repository files as they were verified by the last checkout.
+ * A checksum is only trusted as long as size and modification time of the file did not change.
+ * <p>
+ * Zip archives are re-compressed locally, so their bytes differ from the server and the descriptor has no checksum
+ * for them. They are indexed with the checksum of the local file and the checksums of their entries listed in the
+ * descriptor, which allow to verify an archive downloaded from the server.
+ */
+@Data
+@Slf4j
+public class ChecksumIndex {
+    @JsonProperty("algorithm")
+    private ChecksumAlgorithm algorithm = ChecksumAlgorithm.CRC32;
+    @JsonProperty("files")
+    private Map<String, Entry> files = new HashMap<>();
+
+    /** Target checksum of zip archives in the patch descriptor. */
+    public static final String ARCHIVE_CHECKSUM = "#ZIPFILE";
+
+    /***
+     * Reads the index, a missing or unreadable index results in an empty index
+     * @param indexPath the index file
+     * @return the index
+     */
+    public static ChecksumIndex read(Path indexPath) {
+        if (Files.exists(indexPath)) {
+            try {
+                return new ObjectMapper().readValue(indexPath.toFile(), ChecksumIndex.class);
+            } catch (IOException e) {
+                log.warn("Checksum index `{}` is unreadable and will be ignored", indexPath, e);
+            }
+        }
+        return new ChecksumIndex();
+    }
+
+    /***
+     * Writes the index to a temporary file first and moves it to indexPath afterwards,
+     * so that indexPath never contains an incomplete index
+     * @param indexPath target file
+     * @throws IOException on all IO errors
+     */
+    public void write(Path indexPath) throws IOException {
+        Path intermediatePath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        new ObjectMapper().writeValue(intermediatePath.toFile(), this);
+        Files.move(intermediatePath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /***
+     * Creates the index of a checked out version from the target checksums of its patch descriptor
+     * @param rootItem the root item of the patch descriptor
+     * @param repositoryPath root path of the checked out repository
+     * @param algorithm the checksum algorithm of the patch descriptor
+     * @return the index of all files with a known checksum
+     */
+    public static ChecksumIndex fromDiff(DiffItem rootItem, Path repositoryPath, ChecksumAlgorithm algorithm) {
+        return fromDiff(rootItem, repositoryPath, algorithm, new ChecksumIndex());
+    }
+
+    /***
+     * Creates the index of a checked out version from the target checksums of its patch descriptor
+     * @param rootItem the root item of the patch descriptor
+     * @param repositoryPath root path of the checked out repository
+     * @param algorithm the checksum algorithm of the patch descriptor
+     * @param previousIndex the index before the checkout, the local checksums of unmodified archives are taken from it
+     * @return the index of all files with a known checksum and all archives
+     */
+    public static ChecksumIndex fromDiff(DiffItem rootItem, Path repositoryPath, ChecksumAlgorithm algorithm, ChecksumIndex previousIndex) {
+        ChecksumIndex checksumIndex = new ChecksumIndex();
+        checksumIndex.setAlgorithm(algorithm);
+        checksumIndex.addDiffItems(rootItem, repositoryPath, repositoryPath, previousIndex);
+        log.debug("Checksum index contains {} files", checksumIndex.files.size());
+        return checksumIndex;
+    }
+
+    /***
+     * Creates the index of a version extracted from a full archive, the checksums are computed during extraction
+     * Zip archives are indexed like all other files, since the extracted bytes are the ones of the server
+     * @param repositoryPath root path of the checked out repository
+     * @param algorithm the algorithm of the checksums
+     * @param checksums the checksums of all extracted files by their path relative to the repositoryPath
+     * @return the index of all extracted files
+     * @throws IOException if an extracted file can't be accessed
+     */
+    public static ChecksumIndex fromExtractedFiles(Path repositoryPath, ChecksumAlgorithm algorithm, Map<String, Long> checksums) throws IOException {
+        ChecksumIndex checksumIndex = new ChecksumIndex();
+        checksumIndex.setAlgorithm(algorithm);
+        for (Map.Entry<String, Long> checksum : checksums.entrySet()) {
+            BasicFileAttributes attributes = Files.readAttributes(repositoryPath.resolve(checksum.getKey()), BasicFileAttributes.class);
+            checksumIndex.files.put(checksum.getKey(), new Entry(
+                    attributes.size(),
+                    attributes.lastModifiedTime().toMillis(),
+                    checksum.getValue(),
+                    false,
+                    null));
+        }
+        log.debug("Checksum index contains {} files", checksumIndex.files.size());
+        return checksumIndex;
+    }
+
+    private void addDiffItems(DiffItem diffItem, Path repositoryPath, Path path, ChecksumIndex previousIndex) {
+        for (val item : diffItem.getItems()) {
+            Path itemPath = path.resolve(item.getName());
+
+            if (item.getPatchAction() == PatchAction.REMOVE) {
+                continue;
+            }
+
+            try {
+                if (item.getIoType() == IoType.DIRECTORY) {
+                    addDiffItems(item, repositoryPath, itemPath, previousIndex);
+                } else if (item.getIoType() == IoType.FILE && ARCHIVE_CHECKSUM.equals(item.getTargetCrc())) {
+                    files.put(relativize(repositoryPath, itemPath), createArchiveEntry(item, repositoryPath, itemPath, previousIndex));
+                } else if (item.getIoType() == IoType.FILE && ChecksumAlgorithm.parse(item.getTargetCrc()) != null) {
+                    BasicFileAttributes attributes = Files.readAttributes(itemPath, BasicFileAttributes.class);
+                    files.put(relativize(repositoryPath, itemPath), new Entry(
+                            attributes.size(),
+                            attributes.lastModifiedTime().toMillis(),
+                            ChecksumAlgorithm.parse(item.getTargetCrc()),
+                            false,
+                            null));
+                }
+            } catch (IOException e) {
+                log.debug("File `{}` is not added to the checksum index", itemPath, e);
+            }
+        }
+    }
+
+    /***
+     * Indexes the local archive, its checksum is computed unless the archive is unmodified since the previous index
+     */
+    private Entry createArchiveEntry(DiffItem item, Path repositoryPath, Path archivePath, ChecksumIndex previousIndex) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(archivePath, BasicFileAttributes.class);
+        Entry previousEntry = previousIndex.algorithm == algorithm ? previousIndex.files.get(relativize(repositoryPath, archivePath)) : null;
+
+        long checksum;
+        if (previousEntry != null && previousEntry.isArchive()
+                && previousEntry.getSize() == attributes.size()
+                && previousEntry.getModified() == attributes.lastModifiedTime().toMillis()) {
+            checksum = previousEntry.getChecksum();
+        } else {
+            checksum = algorithm.checksum(archivePath);
+        }
+
+        Map<String, Long> entries = new TreeMap<>();
+        collectArchiveEntries(item, "", entries);
+        if (entries.isEmpty() && previousEntry != null && previousEntry.getEntries() != null) {
+            // the descriptor only lists the entries of changed archives
+            entries.putAll(previousEntry.getEntries());
+        }
+        return new Entry(attributes.size(), attributes.lastModifiedTime().toMillis(), checksum, true, entries);
+    }
+
+    private static void collectArchiveEntries(DiffItem diffItem, String prefix, Map<String, Long> entries) {
+        for (val item : diffItem.getItems()) {
+            if (item.getPatchAction() == PatchAction.REMOVE) {
+                continue;
+            }
+
+            if (item.getIoType() == IoType.DIRECTORY) {
+                collectArchiveEntries(item, prefix + item.getName() + "/", entries);
+            } else if (item.getIoType() == IoType.FILE && ChecksumAlgorithm.parse(item.getTargetCrc()) != null) {
+                entries.put(prefix + item.getName(), ChecksumAlgorithm.parse(item.getTargetCrc()));
+            }
+        }
+    }
+
+    /***
+     * @param algorithm the requested checksum algorithm
+     * @param repositoryPath root path of the repository
+     * @param file a file inside the repository
+     * @return the checksum of the file, or null if it is unknown, an archive or the file was modified since
+     */
+    public Long getChecksum(ChecksumAlgorithm algorithm, Path repositoryPath, Path file) {
+        Entry entry = files.get(relativize(repositoryPath, file));
+        if (entry == null || entry.isArchive() || algorithm != this.algorithm) {
+            return null;
+        }
+
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attributes.size() == entry.getSize() && attributes.lastModifiedTime().toMillis() == entry.getModified()) {
+                return entry.getChecksum();
+            }
+            log.trace("File `{}` was modified since the checksum was indexed", file);
+        } catch (IOException e) {
+            log.trace("File `{}` can't be accessed", file, e);
+        }
+        return null;
+    }
+
+    private static String relativize(Path repositoryPath, Path path) {
+        return repositoryPath.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Entry {
+        @JsonProperty("size")
+        private long size;
+        @JsonProperty("modified")
+        private long modified;
+        /** For archives the checksum of the local file, otherwise the checksum of the descriptor. */
+        @JsonProperty("checksum")
+        private long checksum;
+        @JsonProperty("archive")
+        private boolean archive;
+        /** Checksums of the archive entries by their path inside the archive, null for other files. */
+        @JsonProperty("entries")
+        private Map<String, Long> entries;
+    }
+}
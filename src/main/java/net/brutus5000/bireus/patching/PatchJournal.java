@@ -0,0 +1,174 @@
+package net.brutus5000.bireus.patching;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes all file system operations of an in-place checkout.
+ * The journal is persisted before the repository is touched, so an interrupted checkout can be rolled forward.
+ * All operations are idempotent, applying a journal twice has the same result as applying it once.
+ */
+@Data
+@Slf4j
+public class PatchJournal {
+    @JsonProperty("target_version")
+    private String targetVersion;
+    @JsonProperty("operations")
+    private List<Operation> operations = new ArrayList<>();
+
+    public static PatchJournal read(Path journalPath) throws IOException {
+        return new ObjectMapper().readValue(journalPath.toFile(), PatchJournal.class);
+    }
+
+    /***
+     * Writes the journal to a temporary file first and moves it to journalPath afterwards,
+     * so that journalPath never contains an incomplete journal
+     * @param journalPath target file
+     * @throws IOException on all IO errors
+     */
+    public void write(Path journalPath) throws IOException {
+        Path intermediatePath = journalPath.resolveSibling(journalPath.getFileName() + ".tmp");
+        new ObjectMapper().writeValue(intermediatePath.toFile(), this);
+        Files.move(intermediatePath, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /***
+     * Adds an operation that replaces the target (file or directory) with the staged source
+     * @param repositoryPath root path of the repository
+     * @param source staged file or directory inside the repository path
+     * @param target file or directory in the repository to be replaced
+     */
+    public void addReplace(Path repositoryPath, Path source, Path target) {
+        add(new Operation(OperationType.REPLACE, relativize(repositoryPath, source), relativize(repositoryPath, target)));
+    }
+
+    /***
+     * Adds an operation that deletes the target (file or directory)
+     * @param repositoryPath root path of the repository
+     * @param target file or directory in the repository to be deleted
+     */
+    public void addDelete(Path repositoryPath, Path target) {
+        add(new Operation(OperationType.DELETE, null, relativize(repositoryPath, target)));
+    }
+
+    /**
+     * Adds the operation and drops all previous operations it supersedes,
+     * that are operations on the same target or on anything inside of it
+     */
+    private void add(Operation operation) {
+        operations.removeIf(previous -> isSameOrInside(previous.getTarget(), operation.getTarget()));
+        operations.add(operation);
+    }
+
+    /***
+     * Resolves where the current content of a repository path is located, if the journal was applied
+     * @param repositoryPath root path of the repository
+     * @param path file or directory in the repository
+     * @return the staged path if the journal replaces the path or one of its parents, otherwise the path itself
+     */
+    public Path resolve(Path repositoryPath, Path path) {
+        String relativePath = relativize(repositoryPath, path);
+
+        for (int i = operations.size() - 1; i >= 0; i--) {
+            Operation operation = operations.get(i);
+            if (isSameOrInside(relativePath, operation.getTarget())) {
+                if (operation.getType() == OperationType.REPLACE) {
+                    return repositoryPath
+                            .resolve(operation.getSource())
+                            .resolve(relativePath.substring(operation.getTarget().length()).replaceFirst("^/", ""));
+                }
+                break;
+            }
+        }
+
+        return path;
+    }
+
+    /***
+     * Applies all operations onto the repository
+     * @param repositoryPath root path of the repository
+     * @throws IOException on all IO errors
+     */
+    public void apply(Path repositoryPath) throws IOException {
+        apply(repositoryPath, repositoryPath);
+    }
+
+    /***
+     * Applies all operations onto a copy of the repository
+     * @param repositoryPath root path of the repository, the staged sources are resolved against it
+     * @param targetPath root path of the tree to modify
+     * @throws IOException on all IO errors
+     */
+    public void apply(Path repositoryPath, Path targetPath) throws IOException {
+        log.debug("Applying journal with {} operations (targetVersion=`{}`)", operations.size(), targetVersion);
+
+        for (Operation operation : operations) {
+            Path target = targetPath.resolve(operation.getTarget());
+            switch (operation.getType()) {
+                case REPLACE:
+                    Path source = repositoryPath.resolve(operation.getSource());
+                    if (Files.exists(source)) {
+                        log.trace("Replace `{}` with `{}`", target, source);
+                        delete(target);
+                        Files.createDirectories(target.getParent());
+                        Files.move(source, target);
+                    } else {
+                        log.trace("Staged file `{}` is already moved", source);
+                    }
+                    break;
+                case DELETE:
+                    log.trace("Delete `{}`", target);
+                    delete(target);
+                    break;
+            }
+        }
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            FileUtils.deleteDirectory(path.toFile());
+        } else {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static boolean isSameOrInside(String path, String parent) {
+        return path.equals(parent) || parent.isEmpty() || path.startsWith(parent + "/");
+    }
+
+    private static String relativize(Path repositoryPath, Path path) {
+        return repositoryPath.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    public enum OperationType {
+        @JsonProperty("replace")
+        REPLACE,
+        @JsonProperty("delete")
+        DELETE
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Operation {
+        @JsonProperty("type")
+        private OperationType type;
+        @JsonProperty("source")
+        private String source;
+        @JsonProperty("target")
+        private String target;
+    }
+}
@@ -0,0 +1,17 @@
+package net.brutus5000.bireus.patching;
+
+/**
+ * Defines how a patch is written into the repository
+ */
+public enum PatchMode {
+    /**
+     * The patched version is built as a complete new tree next to the repository and swapped in afterwards.
+     * The repository stays intact until the very end, but needs twice the disk space.
+     */
+    REBUILD,
+    /**
+     * Only changed and added files are staged, then the repository is modified in place according to a journal.
+     * An interrupted checkout is completed on the next load of the repository.
+     */
+    IN_PLACE
+}
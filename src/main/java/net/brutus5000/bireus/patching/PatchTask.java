@@ -7,17 +7,35 @@ import net.brutus5000.bireus.data.DiffHead;
 import net.brutus5000.bireus.data.DiffItem;
 import net.brutus5000.bireus.data.Repository;
 import net.brutus5000.bireus.service.ArchiveService;
+import net.brutus5000.bireus.service.CheckoutScope;
 import net.brutus5000.bireus.service.DownloadService;
 import net.brutus5000.bireus.service.PatchEventListener;
 import net.brutus5000.bireus.service.RepositoryService;
+import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
-import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Slf4j
 public abstract class PatchTask {
@@ -27,62 +45,230 @@ public abstract class PatchTask {
 
     protected String targetVersion;
 
+    /** Executor for parallel file patching, null if files are patched sequentially. */
+    protected ExecutorService executorService;
+    /**
+     * True if only changed files are written into the temporary folders and collected in the journal,
+     * instead of building the complete new version
+     */
+    protected boolean staging;
+    /** Algorithm of the checksums in the current patch descriptor. */
+    protected ChecksumAlgorithm checksumAlgorithm = ChecksumAlgorithm.CRC32;
+    /** Checksums of the repository files before patching. */
+    protected ChecksumIndex checksumIndex;
+    private PatchJournal journal;
+    /** Scope of all background tasks of the checkout, a failing task cancels all other ones. */
+    private CheckoutScope checkoutScope;
+    private final List<Future<?>> fileTasks = new ArrayList<>();
+    /** Executor for the emergency fallback downloads, created on the first checksum mismatch. */
+    private ExecutorService fallbackExecutorService;
+    private final List<Future<?>> fallbackTasks = new ArrayList<>();
+    /** Executor for the decompression of multi-block patch archives, created on the first patch archive. */
+    private ExecutorService decompressionExecutorService;
+    private boolean journalPending;
+
     public abstract int getVersion();
 
     public void run(RepositoryService repositoryService, PatchEventListener patchEventListener, DownloadService downloadService, Path patchFile) throws IOException {
-        log.debug("Started PatchTask run using {} (protocolVersion=`{}`)", getClass().getCanonicalName(), getVersion());
+        run(repositoryService, patchEventListener, downloadService, Collections.singletonList(CompletableFuture.completedFuture(patchFile)));
+    }
+
+    /***
+     * Applies a chain of patches, where each patch is based on the version the previous one produces.
+     * For more than one patch the changes of all patches are staged and merged first,
+     * so the repository is only written once for the final version.
+     * @param patchFiles the patch archives in the order of application, each patch is awaited when it is needed
+     * @throws IOException on all IO errors
+     */
+    public void run(RepositoryService repositoryService, PatchEventListener patchEventListener, DownloadService downloadService, List<Future<Path>> patchFiles) throws IOException {
+        log.debug("Started PatchTask run using {} (protocolVersion=`{}`, patches=`{}`)", getClass().getCanonicalName(), getVersion(), patchFiles.size());
 
         this.repositoryService = repositoryService;
         this.patchEventListener = patchEventListener;
         this.downloadService = downloadService;
 
-        Path temporaryFolder = null;
+        PatchMode patchMode = repositoryService.getSettings().getPatchMode();
+        staging = patchMode == PatchMode.IN_PLACE || patchFiles.size() > 1;
+        journal = new PatchJournal();
+
+        // the index is invalid as soon as the repository gets modified
+        Path checksumIndexPath = repositoryService.getRepository().getChecksumIndexPath();
+        checksumIndex = ChecksumIndex.read(checksumIndexPath);
+        Files.deleteIfExists(checksumIndexPath);
+
+        List<Path> temporaryFolders = new ArrayList<>();
+        CheckoutScope ownScope = repositoryService.getCheckoutScope() == null ? new CheckoutScope(repositoryService.getSettings().getThreadMode()) : null;
+        checkoutScope = ownScope != null ? ownScope : repositoryService.getCheckoutScope();
+        int patchThreads = repositoryService.getSettings().getPatchThreads();
+        executorService = patchThreads > 1 ? checkoutScope.createExecutor("bireus-patch-", patchThreads) : null;
         try {
-            temporaryFolder = createTemporaryFolder(patchFile.getFileName() + "_");
+            Path repositoryPath = repositoryService.getRepository().getAbsolutePath();
+            DiffItem rootItem = null;
 
-            log.info("Begin decompressing patch `{}` to `{}`", patchFile.getFileName(), temporaryFolder.getFileName());
-            ArchiveService.extractTarXz(patchFile, temporaryFolder);
-            log.info("Patch decompressed");
+            for (Future<Path> pendingPatchFile : patchFiles) {
+                Path patchFile = await(pendingPatchFile);
+                Path temporaryFolder = createTemporaryFolder(patchFile.getFileName() + "_");
+                temporaryFolders.add(temporaryFolder);
 
-            log.trace("Loading {} from json to object", Repository.BIREUS_INFO_FILE);
-            val infoFile = temporaryFolder
-                    .resolve(Repository.BIREUS_INTERAL_FOLDER)
-                    .toFile();
-            val objectMapper = new ObjectMapper();
-            val diffHead = objectMapper.readValue(infoFile, DiffHead.class);
-            targetVersion = diffHead.getTargetVersion();
+                log.info("Begin decompressing patch `{}` to `{}`", patchFile.getFileName(), temporaryFolder.getFileName());
+                rootItem = extractPatch(patchFile, repositoryPath, temporaryFolder);
+                log.info("Patch decompressed");
 
-            if (!Objects.equals(diffHead.getProtocol(), this.getVersion())) {
-                val message = MessageFormat.format("bireus protocol version `{0}` doesn't match patcher task version `{1}`",
-                        diffHead.getProtocol(), this.getVersion());
-                patchEventListener.error(message);
-                throw new IOException(message);
+                patch(rootItem, repositoryPath, temporaryFolder);
+                awaitFileTasks();
+
+                if (staging) {
+                    addToJournal(journal, rootItem, repositoryPath, temporaryFolder);
+                }
             }
+            journal.setTargetVersion(targetVersion);
 
-            if (diffHead.getItems().size() != 1) {
-                val message = "Invalid bireus file - the head is allowed to have one item only";
-                patchEventListener.error(message);
-                throw new IOException(message);
+            if (!staging) {
+                // now, the temporary folder contains the checked out version that we want
+                repositoryService.replaceRepository(temporaryFolders.get(0));
+            } else if (patchMode == PatchMode.IN_PLACE) {
+                log.debug("Write journal with {} operations", journal.getOperations().size());
+                journal.write(repositoryService.getRepository().getJournalPath());
+                journalPending = true;
+                journal.apply(repositoryPath);
+                journalPending = false;
+            } else {
+                // build the new version from the current one and the staged changes of all patches
+                Path rebuildFolder = createTemporaryFolder("rebuild_");
+                temporaryFolders.add(rebuildFolder);
+                materializeRepository(repositoryPath, rebuildFolder);
+                journal.apply(repositoryPath, rebuildFolder);
+                repositoryService.replaceRepository(rebuildFolder);
             }
 
-            DiffItem rootItem = diffHead.getItems().stream().findFirst().get();
-            Path repositoryPath = repositoryService.getRepository().getAbsolutePath();
-            patch(rootItem, repositoryPath, temporaryFolder);
+            // the descriptor of the last patch lists the verified checksums of the final version
+            ChecksumIndex.fromDiff(rootItem, repositoryPath, checksumAlgorithm, checksumIndex).write(checksumIndexPath);
+        } finally {
+            if (executorService != null) {
+                executorService.shutdownNow();
+            }
+            if (ownScope != null) {
+                ownScope.close();
+            }
+            synchronized (fallbackTasks) {
+                if (fallbackExecutorService != null) {
+                    fallbackExecutorService.shutdownNow();
+                    fallbackExecutorService = null;
+                }
+            }
+            if (!journalPending) {
+                // a pending journal still references the staged files and gets rolled forward on next load
+                temporaryFolders.forEach(temporaryFolder -> FileUtils.deleteQuietly(temporaryFolder.toFile()));
+            }
+        }
+    }
 
-            Files.delete(temporaryFolder.resolve(Repository.BIREUS_INTERAL_FOLDER)); // remove the patch descriptor
+    /***
+     * Transfers all files of the repository (except the bireus internal folder) into the target folder
+     * using the configured {@link UnchangedFileStrategy}
+     * @param repositoryPath root path of the repository
+     * @param targetFolder empty folder to fill
+     * @throws IOException on all IO errors
+     */
+    private void materializeRepository(Path repositoryPath, Path targetFolder) throws IOException {
+        UnchangedFileStrategy strategy = repositoryService.getSettings().getUnchangedFileStrategy();
+        Path internalFolder = repositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER);
 
-            // now, the temporary folder contains the checked out version that we want
-            Path intermediateFolder = repositoryPath.getParent().resolve(repositoryService.getRepository().getName() + "_" + UUID.randomUUID().toString());
-            Path relativeTemporaryFolder = repositoryPath.relativize(temporaryFolder);
-            Files.move(repositoryPath, intermediateFolder); // make place for the new repository folder
-            Files.move(intermediateFolder.resolve(relativeTemporaryFolder), repositoryPath); // make the temporaryFolder the new repository
-            Files.move(intermediateFolder.resolve(Repository.BIREUS_INTERAL_FOLDER), repositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER)); // restore the old internal files
-            FileUtils.deleteDirectory(intermediateFolder.toFile()); // get rid of the old repository version
-        } finally {
-            if (temporaryFolder != null) {
-                FileUtils.deleteQuietly(temporaryFolder.toFile());
+        Files.walkFileTree(repositoryPath, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (dir.equals(internalFolder)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                Files.createDirectories(targetFolder.resolve(repositoryPath.relativize(dir)));
+                return FileVisitResult.CONTINUE;
             }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                strategy.materialize(file, targetFolder.resolve(repositoryPath.relativize(file)));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /***
+     * Resolves where the base of a repository file is located while staging multiple patches,
+     * since it may have been changed by a previous patch
+     * @param basePath the path in the repository
+     * @return the path holding the current content
+     */
+    protected Path resolveBasePath(Path basePath) {
+        if (!staging || journal.getOperations().isEmpty()) {
+            return basePath;
         }
+        return journal.resolve(repositoryService.getRepository().getAbsolutePath(), basePath);
+    }
+
+    /***
+     * Extracts the patch archive into the temporary folder.
+     * As soon as the patch descriptor is read, all following files are offered to {@link #patchFromStream},
+     * so they can be applied while the archive is still being decompressed.
+     * @return the root item of the patch descriptor
+     * @throws IOException on extraction errors or if the descriptor is invalid
+     */
+    private DiffItem extractPatch(Path patchFile, Path repositoryPath, Path temporaryFolder) throws IOException {
+        Path descriptorPath = temporaryFolder.resolve(Repository.BIREUS_INTERAL_FOLDER);
+        AtomicReference<DiffItem> rootItem = new AtomicReference<>();
+        ArchiveService.EntryHandler fileWriter = ArchiveService.writeLimited(repositoryService.getSettings().getDiskWriteLimiter());
+
+        int decompressionThreads = repositoryService.getSettings().getDecompressionThreads();
+        ArchiveService.extractTarXz(patchFile, temporaryFolder, getDecompressionExecutor(decompressionThreads), decompressionThreads, (entry, path, inputStream) -> {
+            if (rootItem.get() != null) {
+                return patchFromStream(entry, path, inputStream) || fileWriter.handle(entry, path, inputStream);
+            }
+
+            if (path.equals(descriptorPath)) {
+                // the patch descriptor is not extracted, so it won't end up in the patched repository
+                rootItem.set(readDescriptor(IOUtils.toByteArray(inputStream)));
+                prepareStreaming(rootItem.get(), repositoryPath, temporaryFolder);
+                return true;
+            }
+
+            return fileWriter.handle(entry, path, inputStream);
+        });
+
+        if (rootItem.get() == null) {
+            val message = "Invalid patch - the bireus file is missing";
+            patchEventListener.error(message);
+            throw new IOException(message);
+        }
+
+        return rootItem.get();
+    }
+
+    private DiffItem readDescriptor(byte[] descriptor) throws IOException {
+        log.trace("Loading patch descriptor from json to object");
+        val objectMapper = new ObjectMapper();
+        val diffHead = objectMapper.readValue(descriptor, DiffHead.class);
+        targetVersion = diffHead.getTargetVersion();
+
+        if (!Objects.equals(diffHead.getProtocol(), this.getVersion())) {
+            val message = MessageFormat.format("bireus protocol version `{0}` doesn't match patcher task version `{1}`",
+                    diffHead.getProtocol(), this.getVersion());
+            patchEventListener.error(message);
+            throw new IOException(message);
+        }
+
+        try {
+            checksumAlgorithm = ChecksumAlgorithm.fromDescriptor(diffHead.getChecksumAlgorithm());
+        } catch (IOException e) {
+            patchEventListener.error(e.getMessage());
+            throw e;
+        }
+
+        if (diffHead.getItems().size() != 1) {
+            val message = "Invalid bireus file - the head is allowed to have one item only";
+            patchEventListener.error(message);
+            throw new IOException(message);
+        }
+
+        return diffHead.getItems().stream().findFirst().get();
     }
 
     /***
@@ -91,15 +277,134 @@ public abstract class PatchTask {
      * @throws IOException when folder can't be created
      */
     protected Path createTemporaryFolder(String prefix) throws IOException {
-        Path parentDirectoryPath = repositoryService.getRepository()
-                .getAbsolutePath()
-                .resolve(Repository.BIREUS_INTERAL_FOLDER)
-                .resolve(Repository.BIREUS_TMP_SUBFOLDER);
+        return repositoryService.createTemporaryFolder(prefix);
+    }
 
-        log.debug("Create temp folder in {}", parentDirectoryPath.getFileName());
+    /***
+     * Runs a file task on the executor, or directly if parallel patching is disabled
+     * Tasks inside archives are always run directly, since the archive has to be re-compressed afterwards
+     * @param fileTask the task to run
+     * @param insideArchive true if the file is part of an archive
+     * @throws IOException when a directly executed task fails
+     */
+    protected void runFileTask(FileTask fileTask, boolean insideArchive) throws IOException {
+        if (executorService == null || insideArchive) {
+            fileTask.run();
+            return;
+        }
 
-        Files.createDirectories(parentDirectoryPath);
-        return Files.createTempDirectory(parentDirectoryPath, prefix);
+        fileTasks.add(checkoutScope.submit(executorService, () -> {
+            fileTask.run();
+            return null;
+        }));
+    }
+
+    /***
+     * Work submitted from inside a file task must not be awaited blindly, since all patch workers may be busy
+     * waiting, the submitting task has to run work that was not started yet by itself
+     * @return runs work on the patch workers as part of the checkout, or null if patching is sequential
+     */
+    protected Executor getWorkerExecutor() {
+        if (executorService == null) {
+            return null;
+        }
+        return runnable -> checkoutScope.submit(executorService, Executors.callable(runnable));
+    }
+
+    /***
+     * The reader of the patch archive decodes the blocks no worker has started yet by itself
+     * @return runs the decompression of the patch archive blocks as part of the checkout,
+     * or null if the archives are decompressed sequentially
+     */
+    private Executor getDecompressionExecutor(int decompressionThreads) {
+        if (decompressionThreads <= 1) {
+            return null;
+        }
+        if (decompressionExecutorService == null) {
+            decompressionExecutorService = checkoutScope.createExecutor("bireus-xz-", decompressionThreads);
+        }
+        return runnable -> checkoutScope.submit(decompressionExecutorService, Executors.callable(runnable));
+    }
+
+    /***
+     * Queues a download that replaces a file which could not be patched, patching continues meanwhile
+     * The downloads are awaited together with the file tasks
+     * @param downloadTask the download to run in the background
+     */
+    protected void runFallbackDownload(FileTask downloadTask) {
+        synchronized (fallbackTasks) {
+            if (fallbackExecutorService == null) {
+                fallbackExecutorService = checkoutScope.createExecutor(
+                        "bireus-fallback-", repositoryService.getSettings().getFallbackDownloadThreads());
+            }
+
+            fallbackTasks.add(checkoutScope.submit(fallbackExecutorService, () -> {
+                downloadTask.run();
+                return null;
+            }));
+        }
+    }
+
+    /***
+     * Waits for the future and unwraps the exception of a failed task
+     * @param future the future to wait for
+     * @return the result of the future
+     * @throws IOException the exception of the failed task or of the sibling task that cancelled it,
+     * or if waiting was interrupted
+     */
+    private <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (ExecutionException | CancellationException e) {
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : checkoutScope.getFailure();
+            if (cause == null) {
+                throw new InterruptedIOException("Patching was cancelled");
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Patching was interrupted");
+        }
+    }
+
+    /***
+     * Waits for all submitted file tasks and the fallback downloads they queued,
+     * on the first failure all other tasks are cancelled
+     * @throws IOException the exception of the first failed task
+     */
+    protected void awaitFileTasks() throws IOException {
+        try {
+            for (Future<?> fileTask : fileTasks) {
+                await(fileTask);
+            }
+
+            // all file tasks are done, so no more fallback downloads are queued
+            List<Future<?>> pendingFallbacks;
+            synchronized (fallbackTasks) {
+                pendingFallbacks = new ArrayList<>(fallbackTasks);
+            }
+            if (!pendingFallbacks.isEmpty()) {
+                log.info("Waiting for {} fallback downloads", pendingFallbacks.size());
+            }
+            for (Future<?> fallbackTask : pendingFallbacks) {
+                await(fallbackTask);
+            }
+        } catch (IOException | RuntimeException e) {
+            fileTasks.forEach(fileTask -> fileTask.cancel(true));
+            synchronized (fallbackTasks) {
+                fallbackTasks.forEach(fallbackTask -> fallbackTask.cancel(true));
+            }
+            throw e;
+        } finally {
+            fileTasks.clear();
+            synchronized (fallbackTasks) {
+                fallbackTasks.clear();
+            }
+        }
     }
 
     protected void patch(DiffItem diffItem, Path basePath, Path patchPath) throws IOException {
@@ -107,4 +412,39 @@ public abstract class PatchTask {
     }
 
     protected abstract void patch(DiffItem diffItem, Path basePath, Path patchPath, boolean insideArchive) throws IOException;
+
+    /***
+     * Called once the patch descriptor is read, before any further file of the patch archive is extracted
+     * @param rootItem the root item of the patch descriptor
+     * @param basePath root path of the repository
+     * @param patchPath root path of the extracted patch
+     */
+    protected void prepareStreaming(DiffItem rootItem, Path basePath, Path patchPath) {
+    }
+
+    /***
+     * Offers a file of the patch archive to be applied directly from the archive stream
+     * @param entry the archive entry
+     * @param patchPath the path the file would be extracted to
+     * @param inputStream the content of the file, must not be closed
+     * @return true if the file was consumed and must not be extracted
+     * @throws IOException on reading or patching errors
+     */
+    protected boolean patchFromStream(ArchiveEntry entry, Path patchPath, InputStream inputStream) throws IOException {
+        return false;
+    }
+
+    /***
+     * Adds the operations required to move the staged files of an in-place patch into the repository
+     * @param journal the journal to add the operations to
+     * @param diffItem the item whose children are processed
+     * @param basePath path of the item in the repository
+     * @param patchPath path of the item in the staging folder
+     */
+    protected abstract void addToJournal(PatchJournal journal, DiffItem diffItem, Path basePath, Path patchPath);
+
+    @FunctionalInterface
+    protected interface FileTask {
+        void run() throws IOException;
+    }
 }
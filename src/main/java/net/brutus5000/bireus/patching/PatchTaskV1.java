@@ -1,24 +1,47 @@
 package net.brutus5000.bireus.patching;
 
-import io.sigpipe.jbsdiff.InvalidHeaderException;
-import io.sigpipe.jbsdiff.Patch;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import net.brutus5000.bireus.data.DiffItem;
+import net.brutus5000.bireus.data.IoType;
+import net.brutus5000.bireus.data.PatchAction;
 import net.brutus5000.bireus.data.Repository;
 import net.brutus5000.bireus.service.ArchiveService;
-import org.apache.commons.compress.compressors.CompressorException;
+import net.brutus5000.bireus.service.RateLimiter;
+import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Objects;
+import java.text.MessageFormat;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CheckedOutputStream;
 
 @Slf4j
 public class PatchTaskV1 extends PatchTask {
+    /** Patch files bigger than this are extracted to disk instead of being applied from memory. */
+    private static final long STREAMING_SIZE_LIMIT = 64 * 1024 * 1024;
+
+    private final Map<Path, DiffItem> streamableItems = new HashMap<>();
+    private final Set<Path> streamedFiles = new HashSet<>();
+    private Path streamingBasePath;
+    private Path streamingPatchPath;
+    /** Bytes of streamed patches that may wait in memory until they are applied. */
+    private Semaphore streamingBudget;
+
     @Override
     public int getVersion() {
         return 1;
@@ -36,10 +59,10 @@ public class PatchTaskV1 extends PatchTask {
         for (val item : diffItem.getItems()) {
             switch (item.getIoType()) {
                 case FILE:
-                    patchFile(item,
+                    runFileTask(() -> patchFile(item,
                             basePath.resolve(item.getName()),
                             patchPath.resolve(item.getName()),
-                            insideArchive);
+                            insideArchive), insideArchive);
                     break;
                 case DIRECTORY:
                     patchDirectory(item,
@@ -51,7 +74,98 @@ public class PatchTaskV1 extends PatchTask {
         }
     }
 
+    @Override
+    protected void addToJournal(PatchJournal journal, DiffItem diffItem, Path basePath, Path patchPath) {
+        Path repositoryPath = repositoryService.getRepository().getAbsolutePath();
+
+        for (val item : diffItem.getItems()) {
+            Path itemBasePath = basePath.resolve(item.getName());
+            Path itemPatchPath = patchPath.resolve(item.getName());
+
+            switch (item.getPatchAction()) {
+                case ADD:
+                case BSDIFF:
+                case ZIPDELTA:
+                    journal.addReplace(repositoryPath, itemPatchPath, itemBasePath);
+                    break;
+                case REMOVE:
+                    journal.addDelete(repositoryPath, itemBasePath);
+                    break;
+                case DELTA:
+                    addToJournal(journal, item, itemBasePath, itemPatchPath);
+                    break;
+                case UNCHANGED:
+                    // nothing to do: the file stays as it is
+                    break;
+                default:
+                    log.error("Unexpected patch action `{}` on creating journal", item.getPatchAction());
+            }
+        }
+    }
+
+    @Override
+    protected void prepareStreaming(DiffItem rootItem, Path basePath, Path patchPath) {
+        streamingBasePath = basePath;
+        streamingPatchPath = patchPath;
+        streamableItems.clear();
+        collectStreamableItems(rootItem, patchPath);
+        streamingBudget = new Semaphore((int) Math.min(Integer.MAX_VALUE, repositoryService.getSettings().getStreamingMemoryLimit()));
+        log.debug("{} bsdiff4 files can be applied from the patch stream", streamableItems.size());
+    }
+
+    private void collectStreamableItems(DiffItem diffItem, Path patchPath) {
+        for (val item : diffItem.getItems()) {
+            if (item.getIoType() == IoType.FILE && item.getPatchAction() == PatchAction.BSDIFF) {
+                streamableItems.put(patchPath.resolve(item.getName()), item);
+            } else if (item.getIoType() == IoType.DIRECTORY && item.getPatchAction() == PatchAction.DELTA) {
+                collectStreamableItems(item, patchPath.resolve(item.getName()));
+            }
+        }
+    }
+
+    @Override
+    protected boolean patchFromStream(ArchiveEntry entry, Path patchPath, InputStream inputStream) throws IOException {
+        DiffItem item = streamableItems.get(patchPath);
+        if (item == null || entry.getSize() < 0 || entry.getSize() > STREAMING_SIZE_LIMIT) {
+            return false;
+        }
+
+        // decompression is faster than patching, so the patches waiting in memory are limited
+        int size = (int) entry.getSize();
+        if (!streamingBudget.tryAcquire(size)) {
+            log.debug("Streaming memory limit reached, extracting `{}` to disk", item.getName());
+            return false;
+        }
+
+        log.debug("Patching file from stream (file=`{}`)", item.getName());
+        byte[] patchData;
+        try {
+            patchData = IOUtils.toByteArray(inputStream, size);
+        } catch (IOException e) {
+            streamingBudget.release(size);
+            throw e;
+        }
+        Path basePath = streamingBasePath.resolve(streamingPatchPath.relativize(patchPath));
+        streamedFiles.add(patchPath);
+
+        runFileTask(() -> {
+            try {
+                patchEventListener.beginPatchingFile(basePath);
+                patchBsdiff(item, basePath, patchPath, BsdiffPatcher.PatchSource.of(patchData), false);
+                patchEventListener.finishPatchingFile(basePath);
+            } finally {
+                streamingBudget.release(size);
+            }
+        }, false);
+        return true;
+    }
+
     private void patchFile(DiffItem item, Path basePath, Path patchPath, boolean insideArchive) throws IOException {
+        if (streamedFiles.contains(patchPath)) {
+            log.trace("File `{}` was already patched from stream", item.getName());
+            return;
+        }
+
         log.debug("Patching file (action=`{}`, file=`{}`, relative path=`{}`)", item.getPatchAction(), item.getName(), patchPath.getFileName());
 
         patchEventListener.beginPatchingFile(basePath);
@@ -66,50 +180,25 @@ public class PatchTaskV1 extends PatchTask {
                 patchArchiveFile(item, basePath, patchPath);
                 break;
             case BSDIFF:
-                // apply the patch onto a temporary file and replace the file in patchPath
-                // if checksum does not fit, load file from server and save in patchPath
-
+                // the patched file replaces the bsdiff4 file, so the patch is moved aside while it is read
+                Path bsdiffPath = Files.move(patchPath, Paths.get(patchPath + ".bsdiff"));
                 try {
-                    // check the original file before patching (in basePath)
-                    String crcBeforePatching = "0x" + Long.toHexString(FileUtils.checksumCRC32(basePath.toFile()));
-                    if (!Objects.equals(item.getBaseCrc(), crcBeforePatching)) {
-                        patchEventListener.crcMismatch(basePath);
-                        throw new CrcMismatchException(basePath, item.getBaseCrc(), crcBeforePatching);
-                    }
-
-                    Path patchedTempPath = Paths.get(patchPath + ".patched");
-                    try {
-                        Patch.patch(basePath.toFile(), patchedTempPath.toFile(), patchPath.toFile());
-                    } catch (CompressorException | InvalidHeaderException e) {
-                        throw new IOException("Error on applying bsdiff4", e);
-                    }
-
-                    // the .patched-file replaces the original bsdiff4 file
-                    Files.delete(patchPath);
-                    Files.move(patchedTempPath, patchPath);
-
-                    // check the final file after patching (in patchPath)
-                    String crcAfterPatching = "0x" + Long.toHexString(FileUtils.checksumCRC32(patchPath.toFile()));
-                    if (!Objects.equals(item.getTargetCrc(), crcAfterPatching)) {
-                        val exception = new CrcMismatchException(patchPath, item.getTargetCrc(), crcAfterPatching);
-                        log.error("CRC mismatch in patched file `{}` (expected={}, actual={}), patching aborted", patchPath, item.getTargetCrc(), crcAfterPatching, exception);
-                        patchEventListener.crcMismatch(patchPath);
-                        throw exception;
-                    }
-                } catch (CrcMismatchException e) {
-                    if (insideArchive)
-                        throw e;
-
-                    log.info("Emergency fallback: download {} from original source", basePath);
-                    Repository repository = repositoryService.getRepository();
-                    Files.delete(patchPath);
-                    URL fileUrl = new URL(repository.getUrl() + "/" + targetVersion + "/" + repository.getAbsolutePath().relativize(basePath).toUri().toURL());
-                    downloadService.download(fileUrl, patchPath);
+                    patchBsdiff(item, basePath, patchPath, BsdiffPatcher.PatchSource.of(bsdiffPath), insideArchive);
+                } finally {
+                    Files.deleteIfExists(bsdiffPath);
                 }
                 break;
             case UNCHANGED:
-                // since unchanged, there is no file in the patchPath, we need to copy it from the basePath
-                Files.copy(basePath, patchPath);
+                // since unchanged, there is no file in the patchPath, we need to take it from the basePath
+                // inside archives the compressed entry is copied from the base archive on re-compression
+                // on staging the file just stays where it is
+                if (insideArchive) {
+                    log.trace("Unchanged archive entry `{}` is copied on re-compression", basePath);
+                } else if (staging) {
+                    log.trace("Unchanged file `{}` stays in place", basePath);
+                } else {
+                    repositoryService.getSettings().getUnchangedFileStrategy().materialize(basePath, patchPath);
+                }
                 break;
             default:
                 log.error("Unexpected patch action `{}` on patching file", item.getPatchAction().toString());
@@ -117,6 +206,73 @@ public class PatchTaskV1 extends PatchTask {
         patchEventListener.finishPatchingFile(basePath);
     }
 
+    /***
+     * Applies a bsdiff4 patch onto the base file and writes the result to patchPath
+     * If a checksum does not fit, the file is queued for download from the server into patchPath
+     * @param item the diff item of the file
+     * @param basePath the base file
+     * @param patchPath the target file
+     * @param patch the bsdiff4 patch
+     * @param insideArchive true if the file is part of an archive, then CRC mismatches are not handled here
+     * @throws IOException on all IO errors
+     */
+    private void patchBsdiff(DiffItem item, Path basePath, Path patchPath, BsdiffPatcher.PatchSource patch, boolean insideArchive) throws IOException {
+        Path sourcePath = insideArchive ? basePath : resolveBasePath(basePath);
+
+        try {
+            // the CRC of the original file is computed by the patcher from its reads of the base file and checked
+            // after the patched file is written, on a mismatch the patched file is discarded below
+            // the CRC of the patched file is computed while it is written
+            // a base file that is unmodified since the last checkout is not verified again
+            Long expectedBaseChecksum = ChecksumAlgorithm.parse(item.getBaseCrc());
+            BsdiffPatcher.OldFileVerifier baseVerifier = checksum -> {
+                if (expectedBaseChecksum == null || expectedBaseChecksum != checksum) {
+                    patchEventListener.crcMismatch(basePath);
+                    throw new CrcMismatchException(basePath, item.getBaseCrc(), ChecksumAlgorithm.format(checksum));
+                }
+            };
+            Long indexedChecksum = insideArchive || !sourcePath.equals(basePath)
+                    ? null
+                    : checksumIndex.getChecksum(checksumAlgorithm, repositoryService.getRepository().getAbsolutePath(), basePath);
+            if (indexedChecksum != null && indexedChecksum.equals(expectedBaseChecksum)) {
+                log.trace("Base file `{}` is verified by the checksum index", basePath);
+                baseVerifier = null;
+            }
+
+            long checksumAfterPatching;
+            try (CheckedOutputStream outputStream = new CheckedOutputStream(new BufferedOutputStream(
+                    RateLimiter.limit(repositoryService.getSettings().getDiskWriteLimiter(), Files.newOutputStream(patchPath))), checksumAlgorithm.create())) {
+                BsdiffPatcher.patch(sourcePath, patch, outputStream, checksumAlgorithm, baseVerifier);
+                outputStream.flush();
+                checksumAfterPatching = outputStream.getChecksum().getValue();
+            } catch (CrcMismatchException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new IOException(MessageFormat.format("Error on applying bsdiff4 to `{0}`", basePath), e);
+            }
+
+            // check the final file after patching (in patchPath)
+            Long expectedTargetChecksum = ChecksumAlgorithm.parse(item.getTargetCrc());
+            if (expectedTargetChecksum == null || expectedTargetChecksum != checksumAfterPatching) {
+                String actualChecksum = ChecksumAlgorithm.format(checksumAfterPatching);
+                val exception = new CrcMismatchException(patchPath, item.getTargetCrc(), actualChecksum);
+                log.error("CRC mismatch in patched file `{}` (expected={}, actual={}), patching aborted", patchPath, item.getTargetCrc(), actualChecksum, exception);
+                patchEventListener.crcMismatch(patchPath);
+                throw exception;
+            }
+        } catch (CrcMismatchException e) {
+            if (insideArchive)
+                throw e;
+
+            log.info("Emergency fallback: queue download of {} from original source", basePath);
+            Repository repository = repositoryService.getRepository();
+            Files.deleteIfExists(patchPath);
+            URL fileUrl = repository.getRemoteFileURL(targetVersion,
+                    repository.getAbsolutePath().relativize(basePath).toString().replace(File.separatorChar, '/'));
+            runFallbackDownload(() -> downloadService.download(fileUrl, patchPath));
+        }
+    }
+
     private void patchDirectory(DiffItem item, Path basePath, Path patchPath, boolean insideArchive) throws IOException {
         log.debug("Patching directory (action=`{}`, folder=`{}`, path=`{}`)", item.getPatchAction(), item.getName(), basePath.getFileName());
 
@@ -129,6 +285,7 @@ public class PatchTaskV1 extends PatchTask {
                 // do nothing: the files don't exist in the patchPath
                 break;
             case DELTA:
+                Files.createDirectories(patchPath);
                 patch(item, basePath, patchPath, insideArchive);
                 break;
             default:
@@ -138,12 +295,16 @@ public class PatchTaskV1 extends PatchTask {
     }
 
     private void patchArchiveFile(DiffItem item, Path basePath, Path patchPath) throws IOException {
+        Path baseArchive = resolveBasePath(basePath);
+
         // we need a temporary folder to extract the zip content from the base files
         Path temporaryFolder = createTemporaryFolder("extracted_" + patchPath.getFileName() + "_");
 
-        // extract the original files, attention: the patch files aren't zipped anymore
-        log.debug("Extracting files to `{}`", temporaryFolder);
-        ArchiveService.extractZip(basePath, temporaryFolder);
+        // extract the original files that are patched, attention: the patch files aren't zipped anymore
+        Set<String> patchedEntries = new HashSet<>();
+        collectEntries(item, "", EnumSet.of(PatchAction.BSDIFF, PatchAction.ZIPDELTA), patchedEntries);
+        log.debug("Extracting {} files to `{}`", patchedEntries.size(), temporaryFolder);
+        ArchiveService.extractZip(baseArchive, temporaryFolder, patchedEntries::contains);
 
         // now we can start the patching
         patch(item, temporaryFolder, patchPath, true);
@@ -155,9 +316,26 @@ public class PatchTaskV1 extends PatchTask {
 
         // patchPath is a folder with the patch files but is supposed to be the zip file,
         // therefore we rename the folder for a second before compressing
+        // unchanged entries are not in the folder, they are copied from the base archive without re-compression
+        // the files are deflated by the idle patch workers and this one, so the patch threads are never exceeded
         log.debug("Re-compressing files at {}", patchPath);
+        Set<String> unchangedEntries = new HashSet<>();
+        collectEntries(item, "", EnumSet.of(PatchAction.UNCHANGED), unchangedEntries);
         Path intermediateFolder = Files.move(patchPath, Paths.get(patchPath + ".patched"));
-        ArchiveService.compressFolderToZip(intermediateFolder, patchPath);
+        ArchiveService.compressFolderToZip(intermediateFolder, patchPath, getWorkerExecutor(), baseArchive, unchangedEntries::contains);
         FileUtils.deleteDirectory(intermediateFolder.toFile());
     }
+
+    /***
+     * Collects the archive entry names of all files inside the zip with one of the given patch actions
+     */
+    private static void collectEntries(DiffItem diffItem, String prefix, Set<PatchAction> patchActions, Set<String> entries) {
+        for (val item : diffItem.getItems()) {
+            if (item.getIoType() == IoType.FILE && patchActions.contains(item.getPatchAction())) {
+                entries.add(prefix + item.getName());
+            } else if (item.getIoType() == IoType.DIRECTORY && item.getPatchAction() == PatchAction.DELTA) {
+                collectEntries(item, prefix + item.getName() + "/", patchActions, entries);
+            }
+        }
+    }
 }
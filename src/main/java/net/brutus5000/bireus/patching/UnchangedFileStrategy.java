@@ -0,0 +1,57 @@
+package net.brutus5000.bireus.patching;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Defines how an unchanged file of the base version is transferred into the patched version
+ */
+@Slf4j
+public enum UnchangedFileStrategy {
+    /**
+     * Copy the whole file, the base version stays completely untouched
+     */
+    COPY {
+        @Override
+        public void materialize(Path basePath, Path patchPath) throws IOException {
+            Files.copy(basePath, patchPath);
+        }
+    },
+    /**
+     * Create a hard link to the base file, falls back to copying if the file system does not support it
+     * (i.e. the repository spans multiple file systems)
+     */
+    HARD_LINK {
+        @Override
+        public void materialize(Path basePath, Path patchPath) throws IOException {
+            try {
+                Files.createLink(patchPath, basePath);
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                log.trace("Hard link of `{}` not possible, fallback to copy", basePath, e);
+                COPY.materialize(basePath, patchPath);
+            }
+        }
+    },
+    /**
+     * Move the base file, which is a rename on the same file system
+     * Attention: if patching fails afterwards, the moved files are missing in the base version
+     */
+    MOVE {
+        @Override
+        public void materialize(Path basePath, Path patchPath) throws IOException {
+            Files.move(basePath, patchPath);
+        }
+    };
+
+    /***
+     * Makes the content of basePath available at patchPath
+     * @param basePath the unchanged file in the base version
+     * @param patchPath the path of the file in the patched version, must not exist yet
+     * @throws IOException on all IO errors
+     */
+    public abstract void materialize(Path basePath, Path patchPath) throws IOException;
+}
@@ -4,21 +4,42 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ScatterZipOutputStream;
+import org.apache.commons.compress.archivers.zip.StreamCompressor;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntryRequest;
 import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
-import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.parallel.FileBasedScatterGatherBackingStore;
+import org.apache.commons.compress.parallel.ScatterGatherBackingStore;
+import org.apache.commons.io.FileUtils;
+import net.brutus5000.bireus.patching.ChecksumAlgorithm;
 import org.apache.commons.io.IOUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
 
 @Slf4j
 public class ArchiveService {
@@ -26,17 +47,18 @@ public class ArchiveService {
      * Extracts the result of an archiveInputStream into the given targetDirectory
      * @param archiveInputStream can be all kinds of supported compression methods
      * @param targetDirectory root directory for the extracted files and folders
+     * @param entryHandler gets the chance to consume each file before it is written to disk
      * @throws IOException on reading or writing errors
      */
-    private static void extractArchiveStream(ArchiveInputStream archiveInputStream, Path targetDirectory) throws IOException {
+    private static void extractArchiveStream(ArchiveInputStream archiveInputStream, Path targetDirectory, EntryHandler entryHandler) throws IOException {
         ArchiveEntry entry;
 
         try {
             while ((entry = archiveInputStream.getNextEntry()) != null) {
-                Path path = targetDirectory.resolve(entry.getName());
+                Path path = targetDirectory.resolve(entry.getName()).normalize();
                 if (entry.isDirectory()) {
                     Files.createDirectories(path);
-                } else {
+                } else if (!entryHandler.handle(entry, path, archiveInputStream)) {
                     try (OutputStream outputStream = Files.newOutputStream(path)) {
                         IOUtils.copy(archiveInputStream, outputStream);
                     } catch (IOException e) {
@@ -53,18 +75,92 @@ public class ArchiveService {
         try (InputStream fileInputStream = Files.newInputStream(archiveFile);
              ArchiveInputStream zipInputStream = new ZipArchiveInputStream(fileInputStream)) {
 
-            extractArchiveStream(zipInputStream, targetDirectory);
+            extractArchiveStream(zipInputStream, targetDirectory, (entry, path, inputStream) -> false);
+        } catch (IOException e) {
+            throw new IOException(MessageFormat.format("Error on extracting zip-file '{0}'", archiveFile), e);
+        }
+    }
+
+    /***
+     * Extracts the selected entries of a zip file, the other entries are not even read
+     * @param archiveFile the zip file
+     * @param targetDirectory root directory for the extracted files and folders
+     * @param entries selects the names of the entries to extract
+     * @throws IOException on reading or writing errors
+     */
+    public static void extractZip(Path archiveFile, Path targetDirectory, Predicate<String> entries) throws IOException {
+        try (ZipFile zipFile = new ZipFile(archiveFile.toFile())) {
+            for (ZipArchiveEntry entry : Collections.list(zipFile.getEntries())) {
+                if (entry.isDirectory() || !entries.test(entry.getName())) {
+                    continue;
+                }
+
+                Path path = targetDirectory.resolve(entry.getName()).normalize();
+                Files.createDirectories(path.getParent());
+                try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                    Files.copy(inputStream, path);
+                } catch (IOException e) {
+                    throw new IOException(MessageFormat.format("Error when writing file '{0}'", entry.getName()), e);
+                }
+            }
         } catch (IOException e) {
             throw new IOException(MessageFormat.format("Error on extracting zip-file '{0}'", archiveFile), e);
         }
     }
 
     public static void extractTarXz(Path archiveFile, Path targetDirectory) throws IOException {
-        try (InputStream fileInputStream = Files.newInputStream(archiveFile);
-             XZCompressorInputStream xzCompressorInputStream = new XZCompressorInputStream(fileInputStream);
-             TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(xzCompressorInputStream)) {
+        extractTarXz(archiveFile, targetDirectory, (entry, path, inputStream) -> false);
+    }
 
-            extractArchiveStream(tarArchiveInputStream, targetDirectory);
+    /***
+     * Extracts a tar.xz archive while it is decompressed, every file is offered to the entryHandler first
+     * @param archiveFile the tar.xz file
+     * @param targetDirectory root directory for the extracted files and folders
+     * @param entryHandler may consume files instead of writing them to disk
+     * @throws IOException on reading or writing errors
+     */
+    public static void extractTarXz(Path archiveFile, Path targetDirectory, EntryHandler entryHandler) throws IOException {
+        extractTarXz(archiveFile, targetDirectory, Runtime.getRuntime().availableProcessors(), entryHandler);
+    }
+
+    /***
+     * Extracts a tar.xz archive while it is decompressed, every file is offered to the entryHandler first
+     * The xz blocks are decompressed by platform threads which only live during the extraction
+     * @param archiveFile the tar.xz file
+     * @param targetDirectory root directory for the extracted files and folders
+     * @param decompressionThreads maximum number of xz blocks decompressed in parallel
+     * @param entryHandler may consume files instead of writing them to disk
+     * @throws IOException on reading or writing errors
+     */
+    public static void extractTarXz(Path archiveFile, Path targetDirectory, int decompressionThreads, EntryHandler entryHandler) throws IOException {
+        if (decompressionThreads <= 1) {
+            extractTarXz(archiveFile, targetDirectory, null, decompressionThreads, entryHandler);
+            return;
+        }
+
+        ExecutorService executorService = ThreadMode.PLATFORM.createExecutor("bireus-xz-", decompressionThreads);
+        try {
+            extractTarXz(archiveFile, targetDirectory, executorService, decompressionThreads, entryHandler);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    /***
+     * Extracts a tar.xz archive while it is decompressed, every file is offered to the entryHandler first
+     * @param archiveFile the tar.xz file
+     * @param targetDirectory root directory for the extracted files and folders
+     * @param decompressionExecutor runs the decompression of the xz blocks, null to decompress sequentially
+     * @param decompressionThreads maximum number of xz blocks decompressed in parallel
+     * @param entryHandler may consume files instead of writing them to disk
+     * @throws IOException on reading or writing errors
+     */
+    public static void extractTarXz(Path archiveFile, Path targetDirectory, Executor decompressionExecutor, int decompressionThreads,
+                                    EntryHandler entryHandler) throws IOException {
+        try (InputStream xzInputStream = ParallelXZInputStream.open(archiveFile, decompressionExecutor, decompressionThreads);
+             TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(xzInputStream)) {
+
+            extractArchiveStream(tarArchiveInputStream, targetDirectory, entryHandler);
         } catch (IOException e) {
             throw new IOException(MessageFormat.format("Error on extracting tar-file '{0}'", archiveFile), e);
         }
@@ -80,8 +176,36 @@ public class ArchiveService {
      * @throws IOException on all IO errors
      */
     public static void compressFolderToZip(Path sourceDir, Path targetFile) throws IOException {
+        compressFolderToZip(sourceDir, targetFile, null, null, entryName -> false);
+    }
+
+    /**
+     * Compresses a whole directory recursively to zip archive, the files are deflated in parallel on the executor
+     * Entries of an existing zip archive can be added without re-compressing them
+     * Attention: the given folder itself is not listed as a folder inside the archive,
+     * all files directly inside the folder are root level in the archive
+     *
+     * @param sourceDir        directory path that content will be zipped
+     * @param targetFile       path to the resulting zip file
+     * @param executor         deflates the files, the calling thread deflates all files the executor did not start yet,
+     *                         so it may be the busy executor of the caller itself; null to deflate on the calling thread
+     * @param rawSourceArchive zip archive to copy raw entries from, may be null
+     * @param rawEntries       selects the entries of the rawSourceArchive that are copied as they are
+     * @throws IOException on all IO errors
+     */
+    public static void compressFolderToZip(Path sourceDir, Path targetFile, Executor executor, Path rawSourceArchive, Predicate<String> rawEntries) throws IOException {
         try (ZipArchiveOutputStream zipFile = new ZipArchiveOutputStream(Files.newOutputStream(targetFile))) {
-            compressDirectoryToZipfile(sourceDir, sourceDir, zipFile);
+            if (executor == null) {
+                compressDirectoryToZipfile(sourceDir, sourceDir, zipFile);
+            } else {
+                compressDirectoryToZipfileParallel(sourceDir, targetFile, executor, zipFile);
+            }
+
+            if (rawSourceArchive != null) {
+                try (ZipFile rawSource = new ZipFile(rawSourceArchive.toFile())) {
+                    rawSource.copyRawEntries(zipFile, entry -> rawEntries.test(entry.getName()));
+                }
+            }
         }
     }
 
@@ -103,4 +227,153 @@ public class ArchiveService {
             }
         }
     }
+
+    /***
+     * Deflates all files of the directory on the executor into scatter files next to the targetFile,
+     * the directory entries are written directly
+     */
+    private static void compressDirectoryToZipfileParallel(Path rootDir, Path targetFile, Executor executor, ZipArchiveOutputStream out) throws IOException {
+        Path scatterFolder = Files.createTempDirectory(targetFile.toAbsolutePath().getParent(), "scatter_");
+        List<FutureTask<ScatterZipOutputStream>> deflateTasks = new ArrayList<>();
+        int written = 0;
+
+        try (Stream<Path> pathStream = Files.walk(rootDir)) {
+            List<Path> folderContent = pathStream
+                    .filter(path -> !path.equals(rootDir))
+                    .collect(Collectors.toList());
+
+            for (Path path : folderContent) {
+                ZipArchiveEntry entry = new ZipArchiveEntry(path.toFile(), rootDir.relativize(path).toString());
+                if (Files.isDirectory(path)) {
+                    out.putArchiveEntry(entry);
+                    out.closeArchiveEntry();
+                } else {
+                    entry.setMethod(ZipArchiveEntry.DEFLATED);
+                    FutureTask<ScatterZipOutputStream> deflateTask = new FutureTask<>(() -> deflate(entry, path, scatterFolder));
+                    deflateTasks.add(deflateTask);
+                    executor.execute(deflateTask);
+                }
+            }
+
+            for (FutureTask<ScatterZipOutputStream> deflateTask : deflateTasks) {
+                // a task that is running or done already is not run again
+                deflateTask.run();
+                try (ScatterZipOutputStream scatterStream = awaitDeflate(deflateTask, rootDir)) {
+                    written++;
+                    scatterStream.writeTo(out);
+                }
+            }
+        } finally {
+            for (FutureTask<ScatterZipOutputStream> deflateTask : deflateTasks.subList(written, deflateTasks.size())) {
+                if (!deflateTask.cancel(true) && !deflateTask.isCancelled()) {
+                    closeQuietly(deflateTask);
+                }
+            }
+            FileUtils.deleteQuietly(scatterFolder.toFile());
+        }
+    }
+
+    private static ScatterZipOutputStream deflate(ZipArchiveEntry entry, Path path, Path scatterFolder) throws IOException {
+        ScatterGatherBackingStore backingStore = new FileBasedScatterGatherBackingStore(Files.createTempFile(scatterFolder, "scatter_", ".tmp").toFile());
+        StreamCompressor streamCompressor = StreamCompressor.create(Deflater.DEFAULT_COMPRESSION, backingStore);
+        ScatterZipOutputStream scatterStream = new ScatterZipOutputStream(backingStore, streamCompressor);
+        try {
+            scatterStream.addArchiveEntry(ZipArchiveEntryRequest.createZipArchiveEntryRequest(entry, () -> {
+                try {
+                    return Files.newInputStream(path);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+            // the scatter file waits for its turn, the native memory of the deflater is released right away
+            streamCompressor.close();
+            return scatterStream;
+        } catch (IOException | RuntimeException e) {
+            scatterStream.close();
+            throw e;
+        }
+    }
+
+    private static ScatterZipOutputStream awaitDeflate(FutureTask<ScatterZipOutputStream> deflateTask, Path rootDir) throws IOException {
+        try {
+            return deflateTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (CancellationException e) {
+            throw new InterruptedIOException("Compressing was cancelled");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(MessageFormat.format("Error on compressing '{0}'", rootDir), e.getCause());
+        }
+    }
+
+    /***
+     * Closes the scatter file of a deflate task, which finished but was not written into the archive
+     */
+    private static void closeQuietly(FutureTask<ScatterZipOutputStream> deflateTask) {
+        try {
+            deflateTask.get().close();
+        } catch (Exception e) {
+            log.trace("Deflate task finished without scatter file", e);
+        }
+    }
+
+    /***
+     * @param rateLimiter limits the write throughput, may be null
+     * @return an entry handler writing all files through the rate limiter,
+     * without a rate limiter the files are left to the default extraction
+     */
+    public static EntryHandler writeLimited(RateLimiter rateLimiter) {
+        if (rateLimiter == null) {
+            return (entry, path, inputStream) -> false;
+        }
+
+        return (entry, path, inputStream) -> {
+            try (OutputStream outputStream = rateLimiter.limit(Files.newOutputStream(path))) {
+                IOUtils.copy(inputStream, outputStream);
+            } catch (IOException e) {
+                throw new IOException(MessageFormat.format("Error when writing file '{0}'", entry.getName()), e);
+            }
+            return true;
+        };
+    }
+
+    /***
+     * @param rateLimiter limits the write throughput, may be null
+     * @param algorithm the checksum algorithm
+     * @param targetDirectory root directory of the extraction
+     * @param checksums receives the checksum of each extracted file by its path relative to the targetDirectory
+     * @return an entry handler computing the checksums of all files while they are written
+     */
+    public static EntryHandler writeChecksummed(RateLimiter rateLimiter, ChecksumAlgorithm algorithm, Path targetDirectory, Map<String, Long> checksums) {
+        return (entry, path, inputStream) -> {
+            try (CheckedOutputStream outputStream = new CheckedOutputStream(
+                    RateLimiter.limit(rateLimiter, Files.newOutputStream(path)), algorithm.create())) {
+                IOUtils.copy(inputStream, outputStream);
+                checksums.put(targetDirectory.relativize(path).toString().replace(File.separatorChar, '/'), outputStream.getChecksum().getValue());
+            } catch (IOException e) {
+                throw new IOException(MessageFormat.format("Error when writing file '{0}'", entry.getName()), e);
+            }
+            return true;
+        };
+    }
+
+    @FunctionalInterface
+    public interface EntryHandler {
+        /***
+         * Called for each file entry of an archive before it gets extracted
+         * @param entry the archive entry
+         * @param path the path the file would be extracted to
+         * @param inputStream the content of the entry, must not be closed
+         * @return true if the content was consumed and must not be extracted
+         * @throws IOException on reading or writing errors
+         */
+        boolean handle(ArchiveEntry entry, Path path, InputStream inputStream) throws IOException;
+    }
 }
@@ -0,0 +1,80 @@
+package net.brutus5000.bireus.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A {@link CompletableFuture} of a blocking task running on an executor.
+ * Unlike a plain CompletableFuture, cancelling it interrupts the running task, so downloads and patching stop
+ * at their next interruption check and clean up their temporary files.
+ */
+@Slf4j
+public class CheckoutFuture<T> extends CompletableFuture<T> {
+    private final Object workerLock = new Object();
+    private Thread worker;
+
+    /***
+     * Starts the task on the executor
+     * @param task the blocking task
+     * @param executor runs the task
+     * @return the future of the task
+     */
+    public static <T> CheckoutFuture<T> start(Task<T> task, Executor executor) {
+        CheckoutFuture<T> future = new CheckoutFuture<>();
+        try {
+            executor.execute(() -> future.execute(task));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void execute(Task<T> task) {
+        synchronized (workerLock) {
+            if (isDone()) {
+                return;
+            }
+            worker = Thread.currentThread();
+        }
+
+        try {
+            complete(task.call());
+        } catch (Exception e) {
+            if (isCancelled()) {
+                log.debug("Cancelled task finished with exception", e);
+            }
+            completeExceptionally(e);
+        } finally {
+            synchronized (workerLock) {
+                worker = null;
+                // don't leak the interruption of a cancel into the next task of a pooled thread
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /***
+     * Cancels the future and interrupts the task if it is running
+     * The task may still be cleaning up when this method returns.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled && mayInterruptIfRunning) {
+            synchronized (workerLock) {
+                if (worker != null) {
+                    worker.interrupt();
+                }
+            }
+        }
+        return cancelled;
+    }
+
+    @FunctionalInterface
+    public interface Task<T> {
+        T call() throws Exception;
+    }
+}
@@ -0,0 +1,113 @@
+package net.brutus5000.bireus.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Groups the background tasks of one checkout, similar to a structured concurrency scope:
+ * the first failing task cancels all other tasks of the scope, closing the scope cancels the remaining tasks
+ * and shuts down the executors created by it.
+ */
+@Slf4j
+public class CheckoutScope implements AutoCloseable {
+    private final ThreadMode threadMode;
+    private final List<ExecutorService> executors = new ArrayList<>();
+    private final List<Future<?>> tasks = new ArrayList<>();
+    private Throwable failure;
+    private boolean closed;
+
+    public CheckoutScope(ThreadMode threadMode) {
+        this.threadMode = threadMode;
+    }
+
+    /***
+     * Creates an executor of the thread mode of this scope, it is shut down when the scope is closed
+     * @param threadPrefix prefix of the thread names
+     * @param threads maximum number of platform threads
+     * @return the new executor
+     */
+    public synchronized ExecutorService createExecutor(String threadPrefix, int threads) {
+        if (closed) {
+            throw new IllegalStateException("Checkout scope is already closed");
+        }
+        ExecutorService executorService = threadMode.createExecutor(threadPrefix, Math.max(1, threads));
+        executors.add(executorService);
+        return executorService;
+    }
+
+    /***
+     * Runs the task on the executor as part of this scope
+     * @param executorService an executor created by this scope
+     * @param task the task
+     * @return the future of the task, it is cancelled if a sibling task fails
+     * @throws RejectedExecutionException if the scope is already closed
+     */
+    public <T> Future<T> submit(ExecutorService executorService, Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task) {
+            @Override
+            protected void setException(Throwable throwable) {
+                super.setException(throwable);
+                if (!isCancelled()) {
+                    fail(throwable);
+                }
+            }
+        };
+
+        synchronized (this) {
+            if (closed) {
+                throw new RejectedExecutionException("Checkout scope is already closed");
+            }
+            if (failure != null) {
+                future.cancel(false);
+                return future;
+            }
+            tasks.add(future);
+        }
+        executorService.execute(future);
+        return future;
+    }
+
+    /***
+     * @return the exception of the first failed task, or null if no task failed
+     */
+    public synchronized Throwable getFailure() {
+        return failure;
+    }
+
+    private void fail(Throwable throwable) {
+        List<Future<?>> siblings;
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            failure = throwable;
+            siblings = new ArrayList<>(tasks);
+        }
+
+        log.debug("Task of checkout failed, cancelling its siblings", throwable);
+        siblings.forEach(sibling -> sibling.cancel(true));
+    }
+
+    @Override
+    public void close() {
+        List<Future<?>> remainingTasks;
+        List<ExecutorService> remainingExecutors;
+        synchronized (this) {
+            closed = true;
+            remainingTasks = new ArrayList<>(tasks);
+            remainingExecutors = new ArrayList<>(executors);
+            tasks.clear();
+            executors.clear();
+        }
+
+        remainingTasks.forEach(task -> task.cancel(true));
+        remainingExecutors.forEach(ExecutorService::shutdownNow);
+    }
+}
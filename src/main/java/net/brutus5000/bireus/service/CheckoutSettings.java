@@ -0,0 +1,87 @@
+package net.brutus5000.bireus.service;
+
+import lombok.Data;
+import net.brutus5000.bireus.patching.PatchMode;
+import net.brutus5000.bireus.patching.UnchangedFileStrategy;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Tuning options applied to every checkout of a repository
+ */
+@Data
+public class CheckoutSettings {
+    /**
+     * Number of worker threads used to patch independent files of a patch in parallel,
+     * a value of 1 patches all files sequentially on the calling thread
+     */
+    private int patchThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Maximum number of blocks of a multi-block tar.xz archive decompressed in parallel,
+     * single-block archives are always decompressed sequentially
+     */
+    private int decompressionThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Maximum bytes of bsdiff patches read from the patch stream that may wait in memory until they are applied,
+     * further patches are extracted to disk
+     */
+    private long streamingMemoryLimit = 256 * 1024 * 1024;
+
+    /**
+     * Defines how unchanged files are transferred from the current version into the patched version
+     */
+    private UnchangedFileStrategy unchangedFileStrategy = UnchangedFileStrategy.HARD_LINK;
+
+    /**
+     * Defines whether a patch rebuilds the whole repository or modifies it in place
+     */
+    private PatchMode patchMode = PatchMode.REBUILD;
+
+    /**
+     * If true, a patch path over multiple versions is applied at once instead of patching each version separately
+     */
+    private boolean coalescePatches = true;
+
+    /**
+     * Maximum number of patch files downloaded concurrently while the patch path is applied
+     */
+    private int prefetchThreads = 2;
+
+    /**
+     * Maximum number of files downloaded concurrently, if patching them failed the checksum check
+     */
+    private int fallbackDownloadThreads = 4;
+
+    /**
+     * Rates the patches of the version graph to find the cheapest patch path
+     */
+    private PatchCostModel patchCostModel = new DownloadSizeCostModel();
+
+    /**
+     * Defines which kind of threads run the downloads and file patches
+     */
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+
+    /**
+     * Limits the bytes per second written by patching and extraction, null for no limit.
+     * A limiter may be shared by several repositories to cap their total throughput.
+     */
+    private RateLimiter diskWriteLimiter;
+
+    /**
+     * Shares downloaded patch files with other repositories and processes, null to disable
+     */
+    private PatchCache patchCache;
+
+    /**
+     * Limits the patch files kept on disk after each checkout
+     */
+    private PatchRetentionPolicy patchRetentionPolicy = new PatchRetentionPolicy();
+
+    /**
+     * Runs the asynchronous checkouts, null uses the shared executor of the {@link #threadMode}
+     */
+    private Executor checkoutExecutor;
+}
@@ -3,10 +3,32 @@ package net.brutus5000.bireus.service;
 import java.net.URL;
 import java.nio.file.Path;
 
+/**
+ * Attention: patch files are downloaded concurrently (see {@link CheckoutSettings#getPrefetchThreads()}),
+ * therefore implementations need to be thread-safe
+ * <p>
+ * Files which don't exist should be reported by a {@link DownloadException} caused by a
+ * {@link java.io.FileNotFoundException}, so that they are not mistaken for a failing server.
+ */
 public interface DownloadService {
     /** Downloads the file at the specified URL to the specified target path. */
     void download(URL url, Path path) throws DownloadException;
 
+    /**
+     * Continues an interrupted download: the bytes of the file at the specified URL starting at offset are appended
+     * to the target path, which holds the first offset bytes already.
+     * Implementations may write the whole file instead, if the server does not support ranges.
+     * Only called if {@link #supportsRanges()} returns true.
+     */
+    default void download(URL url, Path path, long offset) throws DownloadException {
+        throw new DownloadException(new UnsupportedOperationException("Ranged downloads are not supported"), url);
+    }
+
+    /** @return true if interrupted downloads can be continued by {@link #download(URL, Path, long)} */
+    default boolean supportsRanges() {
+        return false;
+    }
+
     /** Reads the file at the specified URL into a byte array. */
     byte[] read(URL url) throws DownloadException;
 }
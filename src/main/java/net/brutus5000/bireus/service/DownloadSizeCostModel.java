@@ -0,0 +1,57 @@
+package net.brutus5000.bireus.service;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import net.brutus5000.bireus.data.Repository;
+
+import java.nio.file.Files;
+import java.util.Map;
+
+/**
+ * Rates patches by the bytes that need to be downloaded.
+ * The patch size is taken from the optional edge attribute {@value #SIZE_ATTRIBUTE} in the versions.gml,
+ * patches that are already on disk only cost the fixed patch overhead.
+ * The full archive of the latest version is only rated, if its vertex has the {@value #SIZE_ATTRIBUTE} attribute.
+ */
+@Slf4j
+@Getter
+@Setter
+public class DownloadSizeCostModel implements PatchCostModel {
+    public static final String SIZE_ATTRIBUTE = "size";
+
+    /** Assumed size in bytes of a patch without size attribute. */
+    private long defaultPatchSize = 10 * 1024 * 1024;
+    /** Fixed cost per patch in bytes, so that fewer patches are preferred on equal download size. */
+    private long patchOverhead = 64 * 1024;
+
+    @Override
+    public double getPatchCost(Repository repository, String fromVersion, String toVersion, Map<String, String> attributes) {
+        if (Files.exists(repository.getPatchPath(fromVersion, toVersion))) {
+            return patchOverhead;
+        }
+
+        Long size = getSize(attributes);
+        return (size == null ? defaultPatchSize : size) + patchOverhead;
+    }
+
+    @Override
+    public double getSnapshotCost(Repository repository, Map<String, String> attributes) {
+        Long size = getSize(attributes);
+        return size == null ? Double.POSITIVE_INFINITY : size + patchOverhead;
+    }
+
+    private static Long getSize(Map<String, String> attributes) {
+        String size = attributes.get(SIZE_ATTRIBUTE);
+        if (size == null) {
+            return null;
+        }
+
+        try {
+            return Math.max(0, Long.parseLong(size.trim()));
+        } catch (NumberFormatException e) {
+            log.warn("Invalid size `{}` in {}, using default", size, Repository.BIREUS_VERSIONS_FILE);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package net.brutus5000.bireus.service;
+
+import net.brutus5000.bireus.data.Repository;
+
+import java.util.Map;
+
+/**
+ * Rates all patches equally, so the patch path with the fewest patches is checked out
+ */
+public class HopCountCostModel implements PatchCostModel {
+    @Override
+    public double getPatchCost(Repository repository, String fromVersion, String toVersion, Map<String, String> attributes) {
+        return 1;
+    }
+}
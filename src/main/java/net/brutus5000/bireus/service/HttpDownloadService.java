@@ -0,0 +1,513 @@
+package net.brutus5000.bireus.service;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.IOUtils;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Default {@link DownloadService} based on {@link HttpURLConnection}.
+ * <ul>
+ * <li>Responses are always read completely and closed, so the JDK keeps the connections alive and reuses them.</li>
+ * <li>Large files are split into segments which are downloaded over parallel connections with range requests.</li>
+ * <li>Data is written straight into a {@link FileChannel} through a direct buffer.</li>
+ * <li>Failed requests are retried with exponential backoff, continuing at the last received byte.</li>
+ * </ul>
+ */
+@Getter
+@Setter
+@Slf4j
+public class HttpDownloadService implements DownloadService {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final long MAX_RETRY_BACKOFF_MILLIS = 30_000;
+    /** Suffix of the files holding the segments of a segmented download until they are complete. */
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+    /** Maximum number of segment connections of all downloads of a service, further segments wait for a free thread. */
+    private static final int MAX_SEGMENT_CONNECTIONS = 16;
+    /** Idle segment threads terminate after this time, so an unused service holds no threads. */
+    private static final long SEGMENT_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private int connectTimeout = 10_000;
+    private int readTimeout = 30_000;
+    /** Number of parallel connections per file, 1 disables segmented downloads. */
+    private int segmentThreads = 4;
+    /** Files smaller than this are downloaded over a single connection. */
+    private long segmentThreshold = 16 * 1024 * 1024;
+    /** Number of retries per request after the first failure. */
+    private int maxRetries = 3;
+    /** Wait time before the first retry, it doubles with every further retry. */
+    private long retryBackoffMillis = 500;
+    /** Limits the download bandwidth in bytes per second, may be shared by several services, null for no limit. */
+    private RateLimiter rateLimiter;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final ExecutorService segmentExecutorService = createExecutorService();
+
+    @Override
+    public void download(URL url, Path path) throws DownloadException {
+        download(url, path, 0);
+    }
+
+    @Override
+    public boolean supportsRanges() {
+        return true;
+    }
+
+    @Override
+    public void download(URL url, Path path, long offset) throws DownloadException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            deleteSegmentFiles(path);
+            Segment segment = new Segment(offset, -1);
+            HttpURLConnection segmentedConnection = null;
+
+            for (int attempt = 0; segmentedConnection == null; ) {
+                try {
+                    URLConnection connection = openConnection(url, segment.position, -1);
+                    if (connection == null) {
+                        log.debug("Download of `{}` was already complete", url);
+                        channel.truncate(segment.position);
+                        return;
+                    }
+
+                    if (!isPartialContent(connection)) {
+                        if (segment.position > 0) {
+                            log.debug("Server ignores the range request for `{}`, downloading the whole file", url);
+                        }
+                        segment.position = 0;
+                    }
+                    channel.truncate(segment.position);
+
+                    long contentLength = connection.getContentLengthLong();
+                    segment.end = contentLength < 0 ? -1 : segment.position + contentLength;
+
+                    if (isSegmentable(connection, segment)) {
+                        segmentedConnection = (HttpURLConnection) connection;
+                    } else {
+                        transfer(connection, channel, segment);
+                        checkComplete(url, segment);
+                        return;
+                    }
+                } catch (IOException e) {
+                    attempt = awaitRetry(url, e, attempt);
+                }
+            }
+
+            downloadSegmented(url, path, channel, segmentedConnection, segment.end);
+        } catch (IOException e) {
+            throw new DownloadException(e, url);
+        }
+    }
+
+    @Override
+    public byte[] read(URL url) throws DownloadException {
+        for (int attempt = 0; ; ) {
+            try {
+                URLConnection connection = openConnection(url, 0, -1);
+                try (InputStream inputStream = connection.getInputStream()) {
+                    return IOUtils.toByteArray(inputStream);
+                }
+            } catch (IOException e) {
+                try {
+                    attempt = awaitRetry(url, e, attempt);
+                } catch (IOException finalException) {
+                    throw new DownloadException(finalException, url);
+                }
+            }
+        }
+    }
+
+    protected URLConnection openConnection(URL url) throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        return connection;
+    }
+
+    /***
+     * Requests the bytes from position up to end and checks the response status
+     * @param end exclusive end of the range, -1 for the end of the file
+     * @return the connection, or null if the file is already complete at position
+     * @throws IOException on connection errors and unexpected status codes, {@link FileNotFoundException} if the file does not exist
+     */
+    private URLConnection openConnection(URL url, long position, long end) throws IOException {
+        URLConnection connection = openConnection(url);
+        if (!(connection instanceof HttpURLConnection)) {
+            return connection;
+        }
+
+        HttpURLConnection httpConnection = (HttpURLConnection) connection;
+        if (position > 0 || end >= 0) {
+            httpConnection.setRequestProperty("Range", "bytes=" + position + "-" + (end >= 0 ? String.valueOf(end - 1) : ""));
+        }
+
+        int status = httpConnection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_PARTIAL) {
+            String contentRange = httpConnection.getHeaderField("Content-Range");
+            if (contentRange == null || !contentRange.startsWith("bytes " + position + "-")) {
+                httpConnection.disconnect();
+                throw new IOException(MessageFormat.format("Server answered with the wrong range `{0}` for offset {1}", contentRange, position));
+            }
+            return httpConnection;
+        }
+        if (status == HttpURLConnection.HTTP_OK) {
+            return httpConnection;
+        }
+
+        boolean complete = status == HTTP_RANGE_NOT_SATISFIABLE && end < 0
+                && ("bytes */" + position).equals(httpConnection.getHeaderField("Content-Range"));
+        discard(httpConnection);
+        if (complete) {
+            return null;
+        }
+        if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+            throw new FileNotFoundException(MessageFormat.format("`{0}` does not exist", url));
+        }
+        throw new HttpStatusException(url, status);
+    }
+
+    private boolean isSegmentable(URLConnection connection, Segment segment) throws IOException {
+        return connection instanceof HttpURLConnection
+                && segmentThreads > 1
+                && segment.position == 0
+                && segment.end >= Math.max(segmentThreshold, segmentThreads)
+                && (isPartialContent(connection) || "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges")));
+    }
+
+    private static boolean isPartialContent(URLConnection connection) throws IOException {
+        return connection instanceof HttpURLConnection
+                && ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+    }
+
+    /***
+     * Downloads the segments of the file in parallel, the first one is read from the already open connection.
+     * Only the first segment is written into the target, the others go into separate files which are appended
+     * once all segments are complete. So the target always holds a gapless beginning of the file, which can be
+     * resumed by its size even if the process is killed in the middle of the download.
+     */
+    private void downloadSegmented(URL url, Path path, FileChannel channel, HttpURLConnection firstConnection, long size) throws IOException {
+        long segmentSize = (size + segmentThreads - 1) / segmentThreads;
+        log.debug("Downloading `{}` ({} bytes) in {} segments", url, size, segmentThreads);
+
+        AtomicBoolean aborted = new AtomicBoolean();
+        List<Future<?>> futures = new ArrayList<>();
+        List<Path> segmentPaths = new ArrayList<>();
+        try {
+            Segment firstSegment = new Segment(0, Math.min(segmentSize, size), 0, aborted);
+            futures.add(segmentExecutorService.submit(() -> {
+                try {
+                    transfer(firstConnection, channel, firstSegment);
+                } catch (IOException e) {
+                    log.debug("First segment of `{}` failed at byte {}", url, firstSegment.position, e);
+                } finally {
+                    firstConnection.disconnect();
+                }
+                downloadSegment(url, channel, firstSegment);
+                return null;
+            }));
+
+            for (long position = segmentSize; position < size; position += segmentSize) {
+                Segment segment = new Segment(position, Math.min(position + segmentSize, size), position, aborted);
+                Path segmentPath = getSegmentPath(path, segmentPaths.size() + 1);
+                segmentPaths.add(segmentPath);
+                futures.add(segmentExecutorService.submit(() -> {
+                    try (FileChannel segmentChannel = FileChannel.open(segmentPath,
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        downloadSegment(url, segmentChannel, segment);
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                await(future);
+            }
+
+            for (Path segmentPath : segmentPaths) {
+                append(segmentPath, channel);
+            }
+        } catch (IOException | RuntimeException e) {
+            // the running segments stop at their next write, the target keeps the completed beginning of the file
+            aborted.set(true);
+            awaitTermination(futures);
+            throw e;
+        } finally {
+            try {
+                deleteSegmentFiles(path);
+            } catch (IOException e) {
+                log.warn("Deleting the segment files of `{}` failed", path, e);
+            }
+        }
+    }
+
+    /***
+     * @param index the index of the segment, starting with 1 since the first segment is written into the target
+     * @return the path the segment is downloaded to
+     */
+    private static Path getSegmentPath(Path path, int index) {
+        return path.resolveSibling(path.getFileName() + SEGMENT_FILE_SUFFIX + index);
+    }
+
+    /***
+     * Deletes the segment files of the target, including the ones left over by a killed process
+     */
+    private static void deleteSegmentFiles(Path path) throws IOException {
+        Path directory = path.toAbsolutePath().getParent();
+        String prefix = path.getFileName() + SEGMENT_FILE_SUFFIX;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, file -> file.getFileName().toString().startsWith(prefix))) {
+            for (Path segmentPath : stream) {
+                Files.deleteIfExists(segmentPath);
+            }
+        }
+    }
+
+    /***
+     * Appends the content of the segment file to the end of the channel
+     */
+    private static void append(Path segmentPath, FileChannel channel) throws IOException {
+        try (FileChannel segmentChannel = FileChannel.open(segmentPath, StandardOpenOption.READ)) {
+            long position = channel.size();
+            long count = segmentChannel.size();
+            for (long transferred = 0; transferred < count; ) {
+                transferred += channel.transferFrom(segmentChannel, position + transferred, count - transferred);
+            }
+        }
+    }
+
+    /***
+     * Downloads the remaining bytes of the segment, retrying with backoff on failures
+     */
+    private void downloadSegment(URL url, FileChannel channel, Segment segment) throws IOException {
+        for (int attempt = 0; segment.position < segment.end; ) {
+            segment.checkAborted();
+            try {
+                URLConnection connection = openConnection(url, segment.position, segment.end);
+                if (!isPartialContent(connection)) {
+                    ((HttpURLConnection) connection).disconnect();
+                    throw new IOException(MessageFormat.format("Server stopped answering range requests for `{0}`", url));
+                }
+                transfer(connection, channel, segment);
+                checkComplete(url, segment);
+            } catch (IOException e) {
+                attempt = awaitRetry(url, e, attempt);
+            }
+        }
+    }
+
+    /***
+     * Writes the response body into the channel at the position of the segment, until the end of the segment
+     * or the end of the response is reached. The position of the segment follows the written bytes.
+     */
+    private void transfer(URLConnection connection, FileChannel channel, Segment segment) throws IOException {
+        try (InputStream inputStream = connection.getInputStream();
+             ReadableByteChannel source = Channels.newChannel(inputStream)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+            while (segment.end < 0 || segment.position < segment.end) {
+                segment.checkAborted();
+                if (segment.end >= 0) {
+                    buffer.limit((int) Math.min(BUFFER_SIZE, segment.end - segment.position));
+                }
+                int count = source.read(buffer);
+                if (count < 0) {
+                    break;
+                }
+                if (rateLimiter != null) {
+                    rateLimiter.acquire(count);
+                }
+
+                buffer.flip();
+                segment.checkAborted();
+                while (buffer.hasRemaining()) {
+                    segment.position += channel.write(buffer, segment.position - segment.channelOffset);
+                }
+                buffer.clear();
+            }
+        }
+    }
+
+    private static void checkComplete(URL url, Segment segment) throws IOException {
+        if (segment.end >= 0 && segment.position != segment.end) {
+            throw new EOFException(MessageFormat.format("Download of `{0}` ended at byte {1} of {2}", url, segment.position, segment.end));
+        }
+    }
+
+    /***
+     * Reads and closes the error body, so that the connection can be reused
+     */
+    private static void discard(HttpURLConnection connection) {
+        try (InputStream errorStream = connection.getErrorStream()) {
+            if (errorStream != null) {
+                IOUtils.skip(errorStream, Long.MAX_VALUE);
+            }
+        } catch (IOException e) {
+            log.trace("Discarding the error response failed", e);
+        }
+    }
+
+    /***
+     * Waits before the next attempt of a failed request
+     * @return the number of the next attempt
+     * @throws IOException the cause if the request should not be retried
+     */
+    private int awaitRetry(URL url, IOException cause, int attempt) throws IOException {
+        if (attempt >= maxRetries || cause instanceof AbortedException || cause instanceof FileNotFoundException
+                || Thread.currentThread().isInterrupted()
+                || (cause instanceof HttpStatusException && !((HttpStatusException) cause).isTransient())) {
+            throw cause;
+        }
+
+        long backoff = Math.min(MAX_RETRY_BACKOFF_MILLIS, retryBackoffMillis << attempt);
+        log.warn("Request to `{}` failed, retrying in {} ms ({} of {})", url, backoff, attempt + 1, maxRetries, cause);
+        try {
+            Thread.sleep(backoff);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a retry");
+        }
+        return attempt + 1;
+    }
+
+    private static void await(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while downloading");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /***
+     * Waits until all futures are done, ignoring their results
+     */
+    private static void awaitTermination(List<Future<?>> futures) {
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException | CancellationException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /***
+     * @return a bounded pool of daemon threads, which terminate when they are idle, so it never has to be shut down
+     */
+    private static ExecutorService createExecutorService() {
+        AtomicInteger threadCounter = new AtomicInteger();
+        ThreadPoolExecutor executorService = new ThreadPoolExecutor(MAX_SEGMENT_CONNECTIONS, MAX_SEGMENT_CONNECTIONS,
+                SEGMENT_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "bireus-download-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executorService.allowCoreThreadTimeOut(true);
+        return executorService;
+    }
+
+    /**
+     * A byte range of the downloaded file, position is the next byte to write.
+     * Segments after the first one are written into their own file, which starts at the first byte of the segment.
+     * Writing stops if the download is aborted or the thread is interrupted.
+     */
+    private static class Segment {
+        long position;
+        long end;
+        /** The byte of the downloaded file at position 0 of the channel the segment is written to. */
+        final long channelOffset;
+        final AtomicBoolean aborted;
+
+        Segment(long position, long end) {
+            this(position, end, 0, new AtomicBoolean());
+        }
+
+        Segment(long position, long end, long channelOffset, AtomicBoolean aborted) {
+            this.position = position;
+            this.end = end;
+            this.channelOffset = channelOffset;
+            this.aborted = aborted;
+        }
+
+        void checkAborted() throws AbortedException {
+            if (aborted.get() || Thread.currentThread().isInterrupted()) {
+                throw new AbortedException();
+            }
+        }
+    }
+
+    private static class AbortedException extends InterruptedIOException {
+        private static final long serialVersionUID = 1L;
+
+        AbortedException() {
+            super("Download aborted");
+        }
+    }
+
+    private static class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        HttpStatusException(URL url, int status) {
+            super(MessageFormat.format("Unexpected HTTP status {0} for `{1}`", status, url));
+            this.status = status;
+        }
+
+        /***
+         * @return true for server errors, timeouts and rate limiting, which may succeed on a later attempt
+         */
+        boolean isTransient() {
+            return status >= 500 || status == HttpURLConnection.HTTP_CLIENT_TIMEOUT || status == HTTP_TOO_MANY_REQUESTS;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package net.brutus5000.bireus.service;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import net.brutus5000.bireus.data.Repository;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link DownloadService} trying a chain of sources for every file, e.g. a local directory mirror, a peer in the
+ * LAN and finally the origin server of the repository.
+ * <ul>
+ * <li>Mirrors hold a copy of the repository, the URLs below the origin URL are rewritten to the mirror URL.</li>
+ * <li>Sources are tried by tier, within a tier the fastest source goes first. The speed is measured as time per MiB,
+ * smaller requests count as one MiB, so that the latency decides between sources for small files.</li>
+ * <li>A failing source is skipped for a cooldown, which doubles with every further failure.
+ * It is only used before then if all other sources failed, too.</li>
+ * <li>Missing files fall through to the next source without affecting the health of the mirror.</li>
+ * <li>By default mirrors only serve patches, since they may lag behind the origin with info.json, versions.gml
+ * and the latest version archive, which change on every release.</li>
+ * </ul>
+ */
+@Slf4j
+public class MirrorDownloadService implements DownloadService {
+    public static final int MIRROR_TIER = 0;
+    public static final int ORIGIN_TIER = 1;
+    /** Weight of the latest request in the average time per MiB. */
+    private static final double COST_SMOOTHING = 0.3;
+    private static final double MEBIBYTE = 1024 * 1024;
+
+    @Getter
+    private final URL originUrl;
+    private final List<Source> sources = new CopyOnWriteArrayList<>();
+
+    /** Time a source is skipped after its first failure, it doubles with every consecutive failure. */
+    @Getter
+    @Setter
+    private long cooldownMillis = 10_000;
+    @Getter
+    @Setter
+    private long maxCooldownMillis = 600_000;
+
+    /***
+     * @param originUrl the URL of the repository, all URLs below it can be served by mirrors
+     */
+    public MirrorDownloadService(URL originUrl) {
+        this.originUrl = originUrl;
+    }
+
+    /***
+     * Adds a mirror in a local or network directory, it only serves patches
+     * @param directory the directory holding a copy of the repository
+     * @return this service
+     */
+    public MirrorDownloadService addLocalMirror(Path directory) {
+        try {
+            HttpDownloadService downloadService = new HttpDownloadService();
+            downloadService.setMaxRetries(0);
+            return addMirror(directory.toString(), directory.toUri().toURL(), downloadService);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("Invalid mirror directory " + directory, e);
+        }
+    }
+
+    /***
+     * Adds a mirror, e.g. a caching proxy in the LAN, it only serves patches
+     * @param name the name of the mirror for logging
+     * @param mirrorUrl the URL of the copy of the repository
+     * @param downloadService the service downloading from the mirror
+     * @return this service
+     */
+    public MirrorDownloadService addMirror(String name, URL mirrorUrl, DownloadService downloadService) {
+        return addSource(new Source(name, MIRROR_TIER, mirrorUrl, downloadService, MirrorDownloadService::isImmutable));
+    }
+
+    /***
+     * Adds the origin server of the repository, it serves all files
+     * @param downloadService the service downloading from the origin
+     * @return this service
+     */
+    public MirrorDownloadService addOrigin(DownloadService downloadService) {
+        return addSource(new Source("origin", ORIGIN_TIER, null, downloadService, url -> true));
+    }
+
+    /***
+     * @param source the source to add, sources of the same tier and speed are tried in order of adding
+     * @return this service
+     */
+    public MirrorDownloadService addSource(Source source) {
+        sources.add(source);
+        return this;
+    }
+
+    /***
+     * @return all sources with their current health and latency
+     */
+    public List<Source> getSources() {
+        return Collections.unmodifiableList(sources);
+    }
+
+    /***
+     * @return true for files which never change once they are published, i.e. all files except the repository
+     * metadata and the latest version archive
+     */
+    public static boolean isImmutable(URL url) {
+        String path = url.getPath();
+        String fileName = path.substring(path.lastIndexOf('/') + 1);
+        return !fileName.equals(Repository.BIREUS_INFO_FILE)
+                && !fileName.equals(Repository.BIREUS_VERSIONS_FILE)
+                && !fileName.equals(Repository.BIREUS_LATEST_VERSION_ARCHIVE);
+    }
+
+    @Override
+    public void download(URL url, Path path) throws DownloadException {
+        execute(url, (source, sourceUrl, attempt) -> {
+            if (attempt > 0) {
+                // a failed source may have left a partial file behind
+                deleteIfExists(sourceUrl, path);
+            }
+            source.downloadService.download(sourceUrl, path);
+            return size(sourceUrl, path);
+        }, Long::longValue);
+    }
+
+    @Override
+    public boolean supportsRanges() {
+        return sources.stream().anyMatch(source -> source.downloadService.supportsRanges());
+    }
+
+    @Override
+    public void download(URL url, Path path, long offset) throws DownloadException {
+        // the partial file may come from another source, which is fine since all sources serve the same content
+        execute(url, (source, sourceUrl, attempt) -> {
+            if (source.downloadService.supportsRanges()) {
+                // a failed source may have appended some bytes already
+                long position = attempt == 0 ? offset : Files.exists(path) ? size(sourceUrl, path) : 0;
+                source.downloadService.download(sourceUrl, path, position);
+                return Math.max(0, size(sourceUrl, path) - position);
+            } else {
+                deleteIfExists(sourceUrl, path);
+                source.downloadService.download(sourceUrl, path);
+                return size(sourceUrl, path);
+            }
+        }, Long::longValue);
+    }
+
+    @Override
+    public byte[] read(URL url) throws DownloadException {
+        return execute(url, (source, sourceUrl, attempt) -> source.downloadService.read(sourceUrl), bytes -> bytes.length);
+    }
+
+    private static void deleteIfExists(URL url, Path path) throws DownloadException {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new DownloadException(e, url);
+        }
+    }
+
+    private static long size(URL url, Path path) throws DownloadException {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            throw new DownloadException(e, url);
+        }
+    }
+
+    /***
+     * Runs the request against the sources in order of preference until one succeeds
+     * @param transferredBytes returns the number of bytes transferred by a successful request
+     * @throws DownloadException of the last source if all sources failed
+     */
+    private <T> T execute(URL url, Request<T> request, ToLongFunction<T> transferredBytes) throws DownloadException {
+        List<Source> candidates = selectSources(url);
+        if (candidates.isEmpty()) {
+            throw new DownloadException(new IOException("No download source configured for this URL"), url);
+        }
+
+        DownloadException lastException = null;
+        int attempt = 0;
+        for (Source source : candidates) {
+            URL sourceUrl;
+            try {
+                sourceUrl = source.resolve(originUrl, url);
+            } catch (MalformedURLException e) {
+                log.warn("Can't resolve `{}` on source `{}`", url, source.name, e);
+                continue;
+            }
+
+            long start = System.nanoTime();
+            try {
+                T result = request.execute(source, sourceUrl, attempt++);
+                source.recordSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), transferredBytes.applyAsLong(result));
+                return result;
+            } catch (DownloadException e) {
+                lastException = e;
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                if (isMissing(e)) {
+                    log.debug("Source `{}` does not have `{}`", source.name, url);
+                } else {
+                    source.recordFailure(cooldownMillis, maxCooldownMillis);
+                    log.warn("Download of `{}` from source `{}` failed, trying the next source", url, source.name, e);
+                }
+            }
+        }
+
+        throw lastException == null
+                ? new DownloadException(new IOException("No download source could resolve this URL"), url)
+                : lastException;
+    }
+
+    /***
+     * @return the sources serving the URL, the healthy ones first, by tier and average time per MiB
+     */
+    private List<Source> selectSources(URL url) {
+        long now = System.currentTimeMillis();
+        List<Source> candidates = sources.stream()
+                .filter(source -> source.serves(originUrl, url))
+                .collect(Collectors.toCollection(ArrayList::new));
+
+        // sorting is stable, so equal sources stay in the order they were added
+        candidates.sort(Comparator.comparing((Source source) -> !source.isHealthy(now))
+                .thenComparingInt(source -> source.tier)
+                .thenComparingDouble(Source::getAverageMillisPerMebibyte));
+        return candidates;
+    }
+
+    private static boolean isMissing(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof FileNotFoundException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @FunctionalInterface
+    private interface Request<T> {
+        /***
+         * @param attempt the number of sources tried before for this request
+         */
+        T execute(Source source, URL sourceUrl, int attempt) throws DownloadException;
+    }
+
+    /**
+     * A source of the chain with its health statistics
+     */
+    public static class Source {
+        @Getter
+        private final String name;
+        @Getter
+        private final int tier;
+        /** The URL the origin URL is rewritten to, null to keep the URLs as they are. */
+        @Getter
+        private final URL baseUrl;
+        private final DownloadService downloadService;
+        private final Predicate<URL> filter;
+
+        private int consecutiveFailures;
+        private long unhealthyUntil;
+        /** Unmeasured sources count as fastest, so that every source is measured once. */
+        private double averageMillisPerMebibyte;
+
+        /***
+         * @param name the name of the source for logging
+         * @param tier sources of lower tiers are tried first
+         * @param baseUrl the URL the origin URL is rewritten to, null to keep the URLs as they are
+         * @param downloadService the service downloading from the source
+         * @param filter selects the origin URLs this source serves
+         */
+        public Source(String name, int tier, URL baseUrl, DownloadService downloadService, Predicate<URL> filter) {
+            this.name = name;
+            this.tier = tier;
+            this.baseUrl = baseUrl;
+            this.downloadService = downloadService;
+            this.filter = filter;
+        }
+
+        public synchronized int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /***
+         * @return the average time per MiB of the recent requests, requests smaller than a MiB count as one MiB
+         */
+        public synchronized double getAverageMillisPerMebibyte() {
+            return averageMillisPerMebibyte;
+        }
+
+        /***
+         * @return true if the source did not fail recently
+         */
+        public boolean isHealthy() {
+            return isHealthy(System.currentTimeMillis());
+        }
+
+        synchronized boolean isHealthy(long now) {
+            return now >= unhealthyUntil;
+        }
+
+        synchronized void recordSuccess(long millis, long bytes) {
+            consecutiveFailures = 0;
+            unhealthyUntil = 0;
+            double millisPerMebibyte = millis / Math.max(1, bytes / MEBIBYTE);
+            averageMillisPerMebibyte = averageMillisPerMebibyte == 0
+                    ? millisPerMebibyte
+                    : COST_SMOOTHING * millisPerMebibyte + (1 - COST_SMOOTHING) * averageMillisPerMebibyte;
+        }
+
+        synchronized void recordFailure(long cooldownMillis, long maxCooldownMillis) {
+            long cooldown = Math.min(maxCooldownMillis, cooldownMillis << Math.min(consecutiveFailures, 20));
+            consecutiveFailures++;
+            unhealthyUntil = System.currentTimeMillis() + cooldown;
+        }
+
+        boolean serves(URL originUrl, URL url) {
+            return filter.test(url) && (baseUrl == null || getRelativePath(originUrl, url) != null);
+        }
+
+        URL resolve(URL originUrl, URL url) throws MalformedURLException {
+            if (baseUrl == null) {
+                return url;
+            }
+
+            String base = baseUrl.toExternalForm();
+            return new URL(base.endsWith("/") ? base + getRelativePath(originUrl, url) : base + "/" + getRelativePath(originUrl, url));
+        }
+
+        /***
+         * @return the path of the URL relative to the origin URL, or null if it is not below the origin URL
+         */
+        private static String getRelativePath(URL originUrl, URL url) {
+            String origin = originUrl.toExternalForm();
+            if (!origin.endsWith("/")) {
+                origin = origin + "/";
+            }
+
+            String external = url.toExternalForm();
+            return external.startsWith(origin) ? external.substring(origin.length()) : null;
+        }
+    }
+}
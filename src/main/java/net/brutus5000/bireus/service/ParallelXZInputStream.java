@@ -0,0 +1,221 @@
+package net.brutus5000.bireus.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.io.IOUtils;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Decompresses the blocks of a multi-block xz file in parallel and returns them in order.
+ * Each worker decodes a whole block into memory, the reader is at most one block per thread
+ * and {@link #MAX_READ_AHEAD_BYTES} ahead. A block that no worker has started yet when it is needed
+ * is decoded by the reader itself, so a busy or shut down executor only slows down decompression.
+ */
+@Slf4j
+public class ParallelXZInputStream extends InputStream {
+    /**
+     * Files with bigger blocks are decompressed sequentially to keep the memory usage bounded
+     */
+    static final long MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Maximum size of the decoded blocks waiting for the reader, at least one block is always decoded ahead
+     */
+    static final long MAX_READ_AHEAD_BYTES = 64 * 1024 * 1024;
+
+    private final Path file;
+    private final long[] blockSizes;
+    private final int window;
+    private final Executor executor;
+    private final Deque<FutureTask<byte[]>> pendingBlocks = new ArrayDeque<>();
+    private long pendingBytes;
+    private volatile boolean closed;
+    /**
+     * Opened xz streams of finished block decodings, reused to avoid parsing the xz index for each block
+     */
+    private final Queue<SeekableXZInputStream> idleDecoders = new ConcurrentLinkedQueue<>();
+    private int nextBlock;
+    private byte[] buffer = new byte[0];
+    private int position;
+
+    private ParallelXZInputStream(Path file, long[] blockSizes, Executor executor, int threads) {
+        this.file = file;
+        this.blockSizes = blockSizes;
+        this.window = threads;
+        this.executor = executor;
+    }
+
+    /***
+     * Opens a decompressing stream for the xz file
+     * Single-block files (as written by single-threaded xz) and files with huge blocks are decoded sequentially
+     * @param file the xz file
+     * @param executor runs the block decodings, null to decompress sequentially
+     * @param threads maximum number of blocks decoded in parallel
+     * @return a stream of the decompressed data, closing it cancels the pending block decodings
+     * @throws IOException on reading errors
+     */
+    public static InputStream open(Path file, Executor executor, int threads) throws IOException {
+        if (executor != null && threads > 1) {
+            try (SeekableXZInputStream xzInputStream = new SeekableXZInputStream(new SeekableFileInputStream(file.toFile()))) {
+                int blockCount = xzInputStream.getBlockCount();
+                if (blockCount > 1 && xzInputStream.getLargestBlockSize() <= MAX_BLOCK_SIZE) {
+                    log.debug("Decompressing {} blocks of `{}` in parallel", blockCount, file.getFileName());
+                    long[] blockSizes = new long[blockCount];
+                    for (int block = 0; block < blockCount; block++) {
+                        blockSizes[block] = xzInputStream.getBlockSize(block);
+                    }
+                    return new ParallelXZInputStream(file, blockSizes, executor, Math.min(threads, blockCount));
+                }
+            } catch (IOException e) {
+                // the sequential decoder reports the actual format error
+                log.debug("Index of `{}` can't be read, decompressing sequentially", file.getFileName(), e);
+            }
+        }
+
+        InputStream fileInputStream = new BufferedInputStream(Files.newInputStream(file));
+        try {
+            return new XZCompressorInputStream(fileInputStream);
+        } catch (IOException e) {
+            fileInputStream.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == buffer.length && !nextBuffer()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (position == buffer.length && !nextBuffer()) {
+            return -1;
+        }
+
+        int count = Math.min(len, buffer.length - position);
+        System.arraycopy(buffer, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        pendingBlocks.forEach(future -> future.cancel(true));
+        pendingBlocks.clear();
+        pendingBytes = 0;
+        buffer = new byte[0];
+        position = 0;
+
+        SeekableXZInputStream decoder;
+        while ((decoder = idleDecoders.poll()) != null) {
+            decoder.close();
+        }
+    }
+
+    /***
+     * Switches to the next decoded block and schedules further blocks
+     * @return false if all blocks were read
+     */
+    private boolean nextBuffer() throws IOException {
+        do {
+            scheduleBlocks();
+            if (pendingBlocks.isEmpty()) {
+                return false;
+            }
+            pendingBytes -= blockSizes[nextBlock - pendingBlocks.size()];
+            FutureTask<byte[]> pendingBlock = pendingBlocks.poll();
+
+            // decodes the block right here if no worker picked it up yet
+            pendingBlock.run();
+            buffer = await(pendingBlock);
+            position = 0;
+        } while (buffer.length == 0);
+
+        scheduleBlocks();
+        return true;
+    }
+
+    private void scheduleBlocks() {
+        while (pendingBlocks.size() < window && nextBlock < blockSizes.length
+                && (pendingBlocks.isEmpty() || pendingBytes + blockSizes[nextBlock] <= MAX_READ_AHEAD_BYTES)) {
+            int block = nextBlock++;
+            FutureTask<byte[]> pendingBlock = new FutureTask<>(() -> decodeBlock(block));
+            pendingBlocks.add(pendingBlock);
+            pendingBytes += blockSizes[block];
+            try {
+                executor.execute(pendingBlock);
+            } catch (RejectedExecutionException e) {
+                log.trace("Block {} is decoded by the reader, the executor rejected it", block, e);
+            }
+        }
+    }
+
+    private byte[] decodeBlock(int block) throws IOException {
+        SeekableXZInputStream decoder = idleDecoders.poll();
+        if (decoder == null) {
+            decoder = new SeekableXZInputStream(new SeekableFileInputStream(file.toFile()));
+        }
+
+        try {
+            decoder.seekToBlock(block);
+            byte[] data = new byte[(int) decoder.getBlockSize(block)];
+            IOUtils.readFully(decoder, data);
+            if (closed) {
+                decoder.close();
+            } else {
+                idleDecoders.add(decoder);
+            }
+            return data;
+        } catch (IOException | RuntimeException e) {
+            decoder.close();
+            throw e;
+        }
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decompressing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
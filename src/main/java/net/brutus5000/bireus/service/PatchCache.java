@@ -0,0 +1,238 @@
+package net.brutus5000.bireus.service;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import net.brutus5000.bireus.patching.ChecksumAlgorithm;
+import net.brutus5000.bireus.patching.UnchangedFileStrategy;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A content-addressed store of patch files, shared by all repositories and processes pointing to the same directory.
+ * Entries are keyed by the patch URL and its checksum, if the server publishes one.
+ * The cache is bounded by size, the least recently used entries are evicted first.
+ * <p>
+ * If the size or the {@link ChecksumAlgorithm#CRC32} checksum of a patch is known, it is verified before the patch is
+ * stored and whenever it is fetched. Entries failing the verification are deleted, so a corrupted file in the shared
+ * directory never spreads to the repositories.
+ * <p>
+ * All modifications happen under an exclusive lock of the cache directory, which is held by a file lock against
+ * other processes and by a {@link ReentrantLock} against other threads of this process. Entries are hard-linked into the
+ * repositories if possible, so evicting an entry never affects a patch file that is already in use.
+ */
+@Slf4j
+public class PatchCache {
+    private static final String LOCK_FILE = ".lock";
+    private static final String ENTRY_SUFFIX = ".patch";
+    /**
+     * File locks are held per process, so threads of this process are serialized by a lock per directory.
+     * Waiting for the file lock must not happen inside a monitor, since that would pin the carrier of a virtual thread.
+     */
+    private static final Map<Path, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+
+    @Getter
+    private final Path directory;
+    @Getter
+    private final long maxSize;
+    private final ReentrantLock lock;
+
+    /***
+     * @param directory the cache directory, it is created if missing
+     * @param maxSize maximum total size of all entries in bytes
+     * @throws IOException if the directory can't be created
+     */
+    public PatchCache(Path directory, long maxSize) throws IOException {
+        this.directory = Files.createDirectories(directory).toRealPath();
+        this.maxSize = maxSize;
+        this.lock = LOCKS.computeIfAbsent(this.directory, key -> new ReentrantLock());
+    }
+
+    /***
+     * @param url the remote URL of the patch
+     * @param checksum the checksum of the patch published by the server, may be null
+     * @return the key of the patch in the cache
+     */
+    public static String getKey(URL url, String checksum) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(url.toExternalForm().getBytes(StandardCharsets.UTF_8));
+            if (checksum != null) {
+                digest.update((byte) 0);
+                digest.update(checksum.getBytes(StandardCharsets.UTF_8));
+            }
+
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /***
+     * Makes the cached patch available at the target path and marks it as recently used
+     * @param key the key of the patch
+     * @param target the path of the patch in the repository, must not exist
+     * @return true if the patch was cached
+     * @throws IOException on IO errors
+     */
+    public boolean fetch(String key, Path target) throws IOException {
+        return fetch(key, target, null, null);
+    }
+
+    /***
+     * Makes the cached patch available at the target path and marks it as recently used
+     * @param key the key of the patch
+     * @param target the path of the patch in the repository, must not exist
+     * @param size the expected size of the patch in bytes, may be null
+     * @param checksum the expected CRC32 checksum of the patch, may be null
+     * @return true if the patch was cached and matches size and checksum
+     * @throws IOException on IO errors
+     */
+    public boolean fetch(String key, Path target, Long size, Long checksum) throws IOException {
+        Path entry = getEntryPath(key);
+
+        return withDirectoryLock(() -> {
+            if (!Files.isRegularFile(entry)) {
+                log.debug("Patch cache miss for `{}`", key);
+                return false;
+            }
+
+            if (!isValid(entry, size, checksum)) {
+                log.warn("Patch `{}` in cache is corrupted, deleting it", key);
+                Files.delete(entry);
+                return false;
+            }
+
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            UnchangedFileStrategy.HARD_LINK.materialize(entry, target);
+            log.debug("Patch cache hit for `{}`", key);
+            return true;
+        });
+    }
+
+    /***
+     * Adds a completely downloaded patch to the cache and evicts the least recently used entries
+     * if the cache is too big afterwards
+     * @param key the key of the patch
+     * @param source the downloaded patch, it stays untouched
+     * @throws IOException on IO errors
+     */
+    public void store(String key, Path source) throws IOException {
+        store(key, source, null, null);
+    }
+
+    /***
+     * Adds a completely downloaded patch to the cache and evicts the least recently used entries
+     * if the cache is too big afterwards
+     * @param key the key of the patch
+     * @param source the downloaded patch, it stays untouched
+     * @param size the expected size of the patch in bytes, may be null
+     * @param checksum the expected CRC32 checksum of the patch, may be null
+     * @throws IOException on IO errors or if the patch does not match size and checksum
+     */
+    public void store(String key, Path source, Long size, Long checksum) throws IOException {
+        Path entry = getEntryPath(key);
+        if (!isValid(source, size, checksum)) {
+            throw new IOException(MessageFormat.format("Patch `{0}` does not match the expected size or checksum", source));
+        }
+
+        // the slow part happens outside of the lock, other processes never see the incomplete file
+        Path intermediate = directory.resolve(key + "." + UUID.randomUUID() + ".tmp");
+        try {
+            UnchangedFileStrategy.HARD_LINK.materialize(source, intermediate);
+
+            withDirectoryLock(() -> {
+                if (!Files.exists(entry)) {
+                    Files.move(intermediate, entry, StandardCopyOption.ATOMIC_MOVE);
+                    Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+                    log.debug("Stored patch `{}` in cache", key);
+                }
+                evict();
+                return null;
+            });
+        } finally {
+            Files.deleteIfExists(intermediate);
+        }
+    }
+
+    /***
+     * Deletes the least recently used entries until the cache fits into maxSize, the lock must be held
+     */
+    private void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + ENTRY_SUFFIX)) {
+            stream.forEach(entries::add);
+        }
+
+        Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+        long size = 0;
+        for (Path entry : entries) {
+            BasicFileAttributes entryAttributes = Files.readAttributes(entry, BasicFileAttributes.class);
+            attributes.put(entry, entryAttributes);
+            size += entryAttributes.size();
+        }
+
+        entries.sort(Comparator.comparing(entry -> attributes.get(entry).lastModifiedTime()));
+        for (Path entry : entries) {
+            if (size <= maxSize) {
+                break;
+            }
+            log.debug("Evicting `{}` from patch cache", entry.getFileName());
+            Files.deleteIfExists(entry);
+            size -= attributes.get(entry).size();
+        }
+    }
+
+    private static boolean isValid(Path file, Long size, Long checksum) throws IOException {
+        if (size != null && Files.size(file) != size) {
+            return false;
+        }
+        return checksum == null || ChecksumAlgorithm.CRC32.checksum(file) == checksum;
+    }
+
+    /***
+     * Runs the action under the exclusive lock of the cache directory, closing the lock file releases its file lock
+     */
+    private <T> T withDirectoryLock(LockedAction<T> action) throws IOException {
+        lock.lock();
+        try (FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            lockChannel.lock();
+            return action.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @FunctionalInterface
+    private interface LockedAction<T> {
+        T run() throws IOException;
+    }
+
+    private Path getEntryPath(String key) {
+        return directory.resolve(key + ENTRY_SUFFIX);
+    }
+}
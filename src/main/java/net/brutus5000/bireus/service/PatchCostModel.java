@@ -0,0 +1,29 @@
+package net.brutus5000.bireus.service;
+
+import net.brutus5000.bireus.data.Repository;
+
+import java.util.Map;
+
+/**
+ * Rates the patches of the version graph, the patch path with the lowest total cost is checked out
+ */
+public interface PatchCostModel {
+    /**
+     * @param repository  the local repository
+     * @param fromVersion base version of the patch
+     * @param toVersion   target version of the patch
+     * @param attributes  attributes of the edge in the versions.gml
+     * @return the cost of downloading and applying the patch, must not be negative
+     */
+    double getPatchCost(Repository repository, String fromVersion, String toVersion, Map<String, String> attributes);
+
+    /**
+     * @param repository the local repository
+     * @param attributes attributes of the latest version vertex in the versions.gml
+     * @return the cost of downloading and extracting the full archive of the latest version,
+     * {@link Double#POSITIVE_INFINITY} if the full archive should not be used
+     */
+    default double getSnapshotCost(Repository repository, Map<String, String> attributes) {
+        return Double.POSITIVE_INFINITY;
+    }
+}
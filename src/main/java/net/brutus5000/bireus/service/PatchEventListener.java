@@ -5,6 +5,11 @@ import org.jgrapht.GraphPath;
 import java.net.URL;
 import java.nio.file.Path;
 
+/**
+ * Receives progress events of a repository.
+ * Attention: the file and repair events may be fired concurrently from patch worker threads (see {@link CheckoutSettings#getPatchThreads()}),
+ * the download events from prefetch threads (see {@link CheckoutSettings#getPrefetchThreads()})
+ */
 public interface PatchEventListener {
     default void error(String message) {
     }
@@ -36,6 +41,12 @@ public interface PatchEventListener {
     default void finishDownloadPatch(URL url) {
     }
 
+    default void beginDownloadSnapshot(URL url) {
+    }
+
+    default void finishDownloadSnapshot(URL url) {
+    }
+
     default void beginPatchingDirectory(Path path) {
     }
 
@@ -53,4 +64,19 @@ public interface PatchEventListener {
 
     default void crcMismatch(Path patchPath) {
     }
+
+    default void beginVerifyRepository(String version) {
+    }
+
+    default void finishVerifyRepository(String version) {
+    }
+
+    default void brokenFile(Path path) {
+    }
+
+    default void beginRepairFile(Path path) {
+    }
+
+    default void finishRepairFile(Path path) {
+    }
 }
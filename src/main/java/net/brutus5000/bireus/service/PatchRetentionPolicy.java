@@ -0,0 +1,93 @@
+package net.brutus5000.bireus.service;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Limits the downloaded patch files kept in the patch folder of a repository, it is enforced after each checkout.
+ * The default policy keeps all patches forever.
+ */
+@Data
+@Slf4j
+public class PatchRetentionPolicy {
+    /**
+     * Maximum total size of the patch folder in bytes
+     */
+    private long maxBytes = Long.MAX_VALUE;
+
+    /**
+     * Patches not modified for longer than this are deleted, null to keep them regardless of their age
+     */
+    private Duration maxAge;
+
+    /**
+     * If true, patches starting at the checked out version are kept regardless of their age and are evicted
+     * last when the size limit is exceeded, since they are needed to go back to a previous version
+     */
+    private boolean keepLikelyPatches = true;
+
+    /***
+     * Deletes the patch files violating this policy, the oldest files are deleted first
+     * @param patchFolder the patch folder of the repository
+     * @param likelyPatches the file names of the patches which are likely needed by a future checkout
+     * @return the remaining files and the deleted files of this run
+     * @throws IOException on IO errors
+     */
+    public PatchStatistics apply(Path patchFolder, Set<String> likelyPatches) throws IOException {
+        if (!Files.isDirectory(patchFolder)) {
+            return new PatchStatistics(0, 0, 0, 0);
+        }
+
+        List<Path> files = new ArrayList<>();
+        Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+        long totalBytes = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(patchFolder, Files::isRegularFile)) {
+            for (Path file : stream) {
+                BasicFileAttributes fileAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+                files.add(file);
+                attributes.put(file, fileAttributes);
+                totalBytes += fileAttributes.size();
+            }
+        }
+
+        // unlikely patches go first, the oldest ones of each group first
+        files.sort(Comparator.<Path, Boolean>comparing(file -> isLikely(file, likelyPatches))
+                .thenComparing(file -> attributes.get(file).lastModifiedTime()));
+
+        long now = System.currentTimeMillis();
+        long evictedFileCount = 0;
+        long evictedBytes = 0;
+        for (Path file : files) {
+            BasicFileAttributes fileAttributes = attributes.get(file);
+            boolean expired = maxAge != null && !isLikely(file, likelyPatches)
+                    && now - fileAttributes.lastModifiedTime().toMillis() > maxAge.toMillis();
+
+            if (expired || totalBytes > maxBytes) {
+                log.debug("Deleting patch file `{}` ({})", file.getFileName(), expired ? "expired" : "size limit exceeded");
+                Files.deleteIfExists(file);
+                totalBytes -= fileAttributes.size();
+                evictedFileCount++;
+                evictedBytes += fileAttributes.size();
+            }
+        }
+
+        return new PatchStatistics(files.size() - evictedFileCount, totalBytes, evictedFileCount, evictedBytes);
+    }
+
+    private boolean isLikely(Path file, Set<String> likelyPatches) {
+        return keepLikelyPatches && likelyPatches.contains(file.getFileName().toString());
+    }
+}
@@ -0,0 +1,20 @@
+package net.brutus5000.bireus.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * Disk usage of the downloaded patch files of a repository
+ */
+@Data
+@AllArgsConstructor
+public class PatchStatistics {
+    /** Number of patch files currently stored, including partial downloads. */
+    private long fileCount;
+    /** Size of all patch files currently stored in bytes. */
+    private long totalBytes;
+    /** Number of patch files deleted by the retention policy since the repository was opened. */
+    private long evictedFileCount;
+    /** Size of all patch files deleted by the retention policy since the repository was opened in bytes. */
+    private long evictedBytes;
+}
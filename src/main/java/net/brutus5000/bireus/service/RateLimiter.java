@@ -0,0 +1,100 @@
+package net.brutus5000.bireus.service;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket limiting the throughput of all streams sharing it, e.g. the download bandwidth or the disk writes
+ * of several concurrent checkouts. Bursts are limited to the permits of one second.
+ */
+public class RateLimiter {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private long permitsPerSecond;
+    private double availablePermits;
+    private long lastRefill = System.nanoTime();
+
+    /***
+     * @param permitsPerSecond the maximum throughput, 0 or less for no limit
+     */
+    public RateLimiter(long permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    public synchronized long getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    /***
+     * Changes the limit, it applies to all following acquisitions
+     * @param permitsPerSecond the maximum throughput, 0 or less for no limit
+     */
+    public synchronized void setPermitsPerSecond(long permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.availablePermits = 0;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /***
+     * Takes the permits, waiting as long as the throughput would exceed the limit otherwise
+     * @param permits e.g. the number of bytes to transfer
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public void acquire(long permits) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            if (permitsPerSecond <= 0 || permits <= 0) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            availablePermits = Math.min(permitsPerSecond, availablePermits + (double) (now - lastRefill) * permitsPerSecond / NANOS_PER_SECOND);
+            lastRefill = now;
+
+            // permits are taken immediately, so later callers queue up behind the debt of earlier ones
+            availablePermits -= permits;
+            waitNanos = availablePermits < 0 ? (long) (-availablePermits * NANOS_PER_SECOND / permitsPerSecond) : 0;
+        }
+
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the rate limit");
+            }
+        }
+    }
+
+    /***
+     * @param outputStream the stream to limit
+     * @return a stream acquiring a permit for each written byte
+     */
+    public OutputStream limit(OutputStream outputStream) {
+        return new FilterOutputStream(outputStream) {
+            @Override
+            public void write(int b) throws IOException {
+                acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                acquire(len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    /***
+     * @param rateLimiter the limiter, may be null
+     * @param outputStream the stream to limit
+     * @return the limited stream, or the stream itself if there is no limiter
+     */
+    public static OutputStream limit(RateLimiter rateLimiter, OutputStream outputStream) {
+        return rateLimiter == null ? outputStream : rateLimiter.limit(outputStream);
+    }
+}
@@ -1,12 +1,17 @@
 package net.brutus5000.bireus.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import lombok.val;
 import net.brutus5000.bireus.data.Repository;
+import net.brutus5000.bireus.patching.ChecksumAlgorithm;
+import net.brutus5000.bireus.patching.ChecksumIndex;
+import net.brutus5000.bireus.patching.PatchJournal;
 import net.brutus5000.bireus.patching.PatchTaskFactory;
+import org.apache.commons.io.FileUtils;
 import org.jgrapht.Graph;
 import org.jgrapht.GraphPath;
 import org.jgrapht.alg.shortestpath.BidirectionalDijkstraShortestPath;
@@ -17,24 +22,66 @@ import org.jgrapht.io.ImportException;
 import org.jgrapht.io.VertexProvider;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 
 @Setter
 @Getter
 @Slf4j
 public class RepositoryService {
+    /** Suffix of patch files which are not completely downloaded yet. */
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
+
     private final ObjectMapper objectMapper = new ObjectMapper();
     PatchEventListener patchEventListener;
     DownloadService downloadService;
+    CheckoutSettings settings = new CheckoutSettings();
 
     Repository repository;
 
     /** Graph of ${code filename of patch file} to ${version name}. */
     Graph<String, String> versionGraph;
 
+    /** Attributes of the versionGraph vertices and edges as listed in the versions.gml. */
+    Map<String, Map<String, String>> vertexAttributes = new HashMap<>();
+    Map<String, Map<String, String>> edgeAttributes = new HashMap<>();
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private long evictedPatchFileCount;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private long evictedPatchBytes;
+
+    /**
+     * Serializes the checkouts and verifications of this repository. It is a lock instead of a monitor,
+     * since a virtual thread blocking on its child tasks inside a monitor pins its carrier thread (Java 21 to 23).
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Scope of the background tasks of the running patch checkout, null if no patches are applied. */
+    @Setter(AccessLevel.NONE)
+    CheckoutScope checkoutScope;
+
     public RepositoryService(Path absolutePath) throws IOException, ImportException {
         log.debug("Creating repository service for path `{}`", absolutePath);
 
@@ -44,8 +91,16 @@ public class RepositoryService {
 
         log.trace("Loading {}", Repository.BIREUS_VERSIONS_FILE);
 
-        VertexProvider<String> vertexProvider = (label, attributes) -> attributes.get("label");
-        EdgeProvider<String, String> edgeProvider = (from, to, label, attributes) -> String.format("%s_to_%s", from, to);
+        VertexProvider<String> vertexProvider = (id, attributes) -> {
+            String version = attributes.get("label");
+            vertexAttributes.put(version, new HashMap<>(attributes));
+            return version;
+        };
+        EdgeProvider<String, String> edgeProvider = (from, to, label, attributes) -> {
+            String edge = String.format("%s_to_%s", from, to);
+            edgeAttributes.put(edge, new HashMap<>(attributes));
+            return edge;
+        };
 
         GmlImporter<String, String> gmlImporter = new GmlImporter<>(vertexProvider, edgeProvider);
 
@@ -53,17 +108,26 @@ public class RepositoryService {
 
         gmlImporter.importGraph(versionGraph, repository.getVersionGraphPath().toFile());
 
+        if (Files.exists(repository.getJournalPath())) {
+            completePendingJournal();
+        }
+
         log.info("Repository `{}` loaded (currentVersion=`{}`, latestVersion=`{}`)", repository.getName(), repository.getCurrentVersion(), repository.getLatestVersion());
     }
 
     public void checkoutLatestVersion() throws CheckoutException {
+        lock.lock();
         try {
-            updateRepositoryFromRemote();
-        } catch (IOException e) {
-            log.warn("Update repository info from remote failed, use local instead", e);
-        }
+            try {
+                updateRepositoryFromRemote();
+            } catch (IOException e) {
+                log.warn("Update repository info from remote failed, use local instead", e);
+            }
 
-        checkout(repository.getLatestVersion());
+            checkout(repository.getLatestVersion());
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean checkVersionExists(String version) {
@@ -80,12 +144,31 @@ public class RepositoryService {
     }
 
     public void checkout(String version) throws CheckoutException {
+        lock.lock();
+        try {
+            checkoutVersion(version);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkoutVersion(String version) throws CheckoutException {
         Objects.requireNonNull(downloadService);
         Objects.requireNonNull(patchEventListener);
 
         log.info("Checking out version `{}` from repository `{}`", version, repository.getName());
         patchEventListener.beginCheckoutVersion(version);
 
+        if (Files.exists(repository.getJournalPath())) {
+            // a previous in-place checkout failed while applying its journal, the repository is partially migrated
+            try {
+                completePendingJournal();
+            } catch (IOException e) {
+                log.error("Completing the pending journal failed", e);
+                throw new CheckoutException("The interrupted checkout can't be completed", repository, version, e);
+            }
+        }
+
         String currentVersion = repository.getCurrentVersion();
         if (currentVersion.equals(version)) {
             log.info("Version `{}` is already checked out", version);
@@ -99,49 +182,321 @@ public class RepositoryService {
             throw new CheckoutException(MessageFormat.format("Version `{0}` is not listed on the server", version), repository, version);
         }
 
+        updateEdgeWeights();
         BidirectionalDijkstraShortestPath<String, String> shortestPathAlgorithm = new BidirectionalDijkstraShortestPath<>(versionGraph);
         GraphPath<String, String> patchPath = shortestPathAlgorithm.getPath(currentVersion, version);
 
-        if (patchPath == null) {
+        if (isSnapshotCheaper(version, patchPath)) {
+            log.info("Downloading the full version `{}` is cheaper than patching", version);
+            checkoutSnapshot(version);
+        } else if (patchPath == null) {
             log.error("No valid patch path from `{}` to `{}`", currentVersion, version);
             patchEventListener.noPatchPath(version);
             throw new CheckoutException(MessageFormat.format("No valid patch path from `{0}` to `{1}`", currentVersion, version), repository, version);
-        }
-
-        log.debug("Patch path found: {}", patchPath);
-        patchEventListener.foundPatchPath(patchPath);
+        } else {
+            log.debug("Patch path found: {}", patchPath);
+            patchEventListener.foundPatchPath(patchPath);
 
-        applyPatchPath(patchPath);
+            applyPatchPath(patchPath);
+        }
 
         log.info("Version `{}` is now checked out", version);
         patchEventListener.finishCheckoutVersion(version);
+
+        enforcePatchRetention();
+    }
+
+    /**
+     * Deletes the patch files violating the retention policy, failures don't affect the finished checkout
+     */
+    private void enforcePatchRetention() {
+        try {
+            PatchStatistics statistics = settings.getPatchRetentionPolicy().apply(getPatchFolder(), getLikelyPatches());
+            evictedPatchFileCount += statistics.getEvictedFileCount();
+            evictedPatchBytes += statistics.getEvictedBytes();
+            log.debug("Patch folder statistics after checkout: {}", statistics);
+        } catch (IOException e) {
+            log.warn("Enforcing the patch retention policy failed", e);
+        }
+    }
+
+    /**
+     * @return the file names of the patches starting at the current version, they are needed to go back
+     */
+    private Set<String> getLikelyPatches() {
+        String currentVersion = repository.getCurrentVersion();
+        if (!versionGraph.containsVertex(currentVersion)) {
+            return Collections.emptySet();
+        }
+
+        return versionGraph.outgoingEdgesOf(currentVersion).stream()
+                .map(edge -> repository.getPatchPath(currentVersion, versionGraph.getEdgeTarget(edge)).getFileName().toString())
+                .collect(Collectors.toSet());
+    }
+
+    private Path getPatchFolder() {
+        return repository.getAbsolutePath()
+                .resolve(Repository.BIREUS_INTERAL_FOLDER)
+                .resolve(Repository.BIREUS_PATCHES_SUBFOLDER);
+    }
+
+    /***
+     * @return the current disk usage of the patch folder and the patches deleted by the retention policy so far
+     * @throws IOException on IO errors
+     */
+    public PatchStatistics getPatchStatistics() throws IOException {
+        lock.lock();
+        try {
+            long fileCount = 0;
+            long totalBytes = 0;
+            if (Files.isDirectory(getPatchFolder())) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(getPatchFolder(), Files::isRegularFile)) {
+                    for (Path file : stream) {
+                        fileCount++;
+                        totalBytes += Files.size(file);
+                    }
+                }
+            }
+            return new PatchStatistics(fileCount, totalBytes, evictedPatchFileCount, evictedPatchBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rates all patches with the configured cost model, so the shortest path is the cheapest one
+     */
+    private void updateEdgeWeights() {
+        for (String edge : versionGraph.edgeSet()) {
+            double cost = settings.getPatchCostModel().getPatchCost(repository,
+                    versionGraph.getEdgeSource(edge),
+                    versionGraph.getEdgeTarget(edge),
+                    edgeAttributes.getOrDefault(edge, Collections.emptyMap()));
+            log.trace("Patch `{}` costs {}", edge, cost);
+            versionGraph.setEdgeWeight(edge, cost);
+        }
+    }
+
+    /***
+     * Verifies all files of the current version against the checksums of the last checkout
+     * @return the files that are missing or modified
+     * @throws IOException if there are no checksums for the current version or on IO errors
+     */
+    public List<Path> verify() throws IOException {
+        Objects.requireNonNull(patchEventListener);
+        lock.lock();
+        try {
+            return new RepositoryVerifier(this).verify(false);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /***
+     * Verifies all files of the current version and downloads the missing or modified files from the server
+     * @return the repaired files
+     * @throws IOException if there are no checksums for the current version or on IO and download errors
+     */
+    public List<Path> repair() throws IOException {
+        Objects.requireNonNull(downloadService);
+        Objects.requireNonNull(patchEventListener);
+        lock.lock();
+        try {
+            return new RepositoryVerifier(this).verify(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The server only offers the latest version as full archive, it is used if it is cheaper than the patch path.
+     * Without a patch path it is only used if the cost model rates it finite.
+     */
+    private boolean isSnapshotCheaper(String version, GraphPath<String, String> patchPath) {
+        if (!Objects.equals(version, repository.getLatestVersion())) {
+            return false;
+        }
+
+        double snapshotCost = settings.getPatchCostModel().getSnapshotCost(repository,
+                vertexAttributes.getOrDefault(version, Collections.emptyMap()));
+        double patchPathCost = patchPath == null ? Double.POSITIVE_INFINITY : patchPath.getWeight();
+        log.debug("Cost of snapshot: {}, cost of patch path: {}", snapshotCost, patchPathCost);
+
+        return snapshotCost < patchPathCost;
+    }
+
+    /**
+     * Replaces the repository content with the full archive of the latest version
+     */
+    private void checkoutSnapshot(String version) throws CheckoutException {
+        val url = repository.getRemoteLatestVersionURL();
+        Path temporaryFolder = null;
+
+        try (CheckoutScope scope = new CheckoutScope(settings.getThreadMode())) {
+            temporaryFolder = createTemporaryFolder("snapshot_");
+            Path archivePath = temporaryFolder.resolve(Repository.BIREUS_LATEST_VERSION_ARCHIVE);
+            Path contentFolder = Files.createDirectory(temporaryFolder.resolve("content"));
+
+            patchEventListener.beginDownloadSnapshot(url);
+            try {
+                downloadService.download(url, archivePath);
+            } catch (DownloadException e) {
+                patchEventListener.error(MessageFormat.format("Downloading full version failed from `{0}`", url));
+                throw new DownloadException(e, url);
+            }
+            patchEventListener.finishDownloadSnapshot(url);
+            checkInterrupted();
+
+            log.debug("Extracting full version to `{}`", contentFolder);
+            Map<String, Long> checksums = new HashMap<>();
+            int decompressionThreads = settings.getDecompressionThreads();
+            ExecutorService decompressionExecutor = decompressionThreads > 1 ? scope.createExecutor("bireus-xz-", decompressionThreads) : null;
+            ArchiveService.extractTarXz(archivePath, contentFolder, decompressionExecutor, decompressionThreads,
+                    ArchiveService.writeChecksummed(settings.getDiskWriteLimiter(), ChecksumAlgorithm.CRC32, contentFolder, checksums));
+            Files.deleteIfExists(repository.getChecksumIndexPath());
+            replaceRepository(contentFolder);
+
+            repository.setCurrentVersion(version);
+            writeRepositoryInfo();
+            ChecksumIndex.fromExtractedFiles(repository.getAbsolutePath(), ChecksumAlgorithm.CRC32, checksums)
+                    .write(repository.getChecksumIndexPath());
+        } catch (IOException e) {
+            log.error(e.getLocalizedMessage(), e);
+            throw new CheckoutException(e.getLocalizedMessage(), repository, version, e);
+        } finally {
+            if (temporaryFolder != null) {
+                FileUtils.deleteQuietly(temporaryFolder.toFile());
+            }
+        }
+    }
+
+    /***
+     * Create a temporary directory inside the bireus internal folder
+     * @return Path to temporary folder
+     * @throws IOException when folder can't be created
+     */
+    public Path createTemporaryFolder(String prefix) throws IOException {
+        Path parentDirectoryPath = repository
+                .getAbsolutePath()
+                .resolve(Repository.BIREUS_INTERAL_FOLDER)
+                .resolve(Repository.BIREUS_TMP_SUBFOLDER);
+
+        log.debug("Create temp folder in {}", parentDirectoryPath.getFileName());
+
+        Files.createDirectories(parentDirectoryPath);
+        return Files.createTempDirectory(parentDirectoryPath, prefix);
+    }
+
+    /***
+     * Makes the newFolder inside the bireus internal folder the new repository folder
+     * @param newFolder folder containing the checked out version
+     * @throws IOException on all IO errors
+     */
+    public void replaceRepository(Path newFolder) throws IOException {
+        Path repositoryPath = repository.getAbsolutePath();
+        Path intermediateFolder = repositoryPath.getParent().resolve(repository.getName() + "_" + UUID.randomUUID().toString());
+        Path relativeNewFolder = repositoryPath.relativize(newFolder);
+        Files.move(repositoryPath, intermediateFolder); // make place for the new repository folder
+        Files.move(intermediateFolder.resolve(relativeNewFolder), repositoryPath); // make the newFolder the new repository
+        Files.move(intermediateFolder.resolve(Repository.BIREUS_INTERAL_FOLDER), repositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER)); // restore the old internal files
+        FileUtils.deleteDirectory(intermediateFolder.toFile()); // get rid of the old repository version
     }
 
     private void applyPatchPath(GraphPath<String, String> patchPath) throws CheckoutException {
-        String versionFrom = patchPath.getStartVertex();
-        String versionTo;
-
-        for (String intermediateVersion : patchPath.getVertexList()) {
-            if (!Objects.equals(versionFrom, intermediateVersion)) {
-                versionFrom = repository.getCurrentVersion();
-                versionTo = intermediateVersion;
-
-                try {
-                    downloadPatchFile(versionFrom, versionTo);
-                    applyPatch(versionFrom, versionTo);
-
-                    repository.setCurrentVersion(versionTo);
-                    log.trace("Delete and rewrite {}", Repository.BIREUS_INFO_FILE);
-                    Files.delete(repository.getInfoPath());
-                    objectMapper.writeValue(repository.getInfoPath().toFile(), repository);
-                } catch (IOException e) {
-                    log.error(e.getLocalizedMessage(), e);
-                    throw new CheckoutException(e.getLocalizedMessage(), repository, versionTo, e);
+        List<String> versions = patchPath.getVertexList();
+
+        try (CheckoutScope scope = new CheckoutScope(settings.getThreadMode())) {
+            checkoutScope = scope;
+            ExecutorService prefetchExecutor = scope.createExecutor("bireus-prefetch-", settings.getPrefetchThreads());
+
+            // all patches are downloaded in the background, each patch is applied as soon as it is available
+            List<Future<Path>> patchFiles = prefetchPatchFiles(versions, prefetchExecutor);
+
+            if (settings.isCoalescePatches() && versions.size() > 2) {
+                // apply all patches in one step, so the repository is only rewritten once
+                applyPatches(versions.get(0), versions.get(versions.size() - 1), patchFiles);
+            } else {
+                for (int i = 1; i < versions.size(); i++) {
+                    applyPatches(versions.get(i - 1), versions.get(i), patchFiles.subList(i - 1, i));
                 }
             }
+        } finally {
+            checkoutScope = null;
+        }
+    }
+
+    private void applyPatches(String versionFrom, String versionTo, List<Future<Path>> patchFiles) throws CheckoutException {
+        try {
+            checkInterrupted();
+            applyPatch(versionFrom, versionTo, patchFiles);
+
+            repository.setCurrentVersion(versionTo);
+            writeRepositoryInfo();
+            Files.deleteIfExists(repository.getJournalPath());
+        } catch (IOException e) {
+            log.error(e.getLocalizedMessage(), e);
+            if (Files.exists(repository.getJournalPath())) {
+                log.warn("Checkout of version `{}` failed with a pending journal, it is completed before the next checkout", versionTo);
+            }
+            throw new CheckoutException(e.getLocalizedMessage(), repository, versionTo, e);
         }
     }
 
+    /***
+     * Aborts a cancelled asynchronous checkout between its steps
+     * @throws InterruptedIOException if the current thread was interrupted
+     */
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Checkout was cancelled");
+        }
+    }
+
+    /**
+     * Starts the download of all patch files along the version path
+     *
+     * @return futures of the patch files in the order of the path
+     */
+    private List<Future<Path>> prefetchPatchFiles(List<String> versions, ExecutorService prefetchExecutor) {
+        List<Future<Path>> patchFiles = new ArrayList<>();
+
+        for (int i = 1; i < versions.size(); i++) {
+            String versionFrom = versions.get(i - 1);
+            String versionTo = versions.get(i);
+
+            patchFiles.add(checkoutScope.submit(prefetchExecutor, () -> {
+                downloadPatchFile(versionFrom, versionTo);
+                return repository.getPatchPath(versionFrom, versionTo);
+            }));
+        }
+
+        return patchFiles;
+    }
+
+    /**
+     * Rolls forward an in-place checkout that was interrupted or failed after its journal was written
+     */
+    private void completePendingJournal() throws IOException {
+        val journal = PatchJournal.read(repository.getJournalPath());
+        log.warn("Found pending journal, completing interrupted checkout of version `{}`", journal.getTargetVersion());
+
+        journal.apply(repository.getAbsolutePath());
+        repository.setCurrentVersion(journal.getTargetVersion());
+        writeRepositoryInfo();
+        Files.delete(repository.getJournalPath());
+
+        FileUtils.deleteQuietly(repository.getAbsolutePath()
+                .resolve(Repository.BIREUS_INTERAL_FOLDER)
+                .resolve(Repository.BIREUS_TMP_SUBFOLDER)
+                .toFile());
+    }
+
+    private void writeRepositoryInfo() throws IOException {
+        log.trace("Delete and rewrite {}", Repository.BIREUS_INFO_FILE);
+        Files.delete(repository.getInfoPath());
+        objectMapper.writeValue(repository.getInfoPath().toFile(), repository);
+    }
+
     private void downloadPatchFile(String versionFrom, String versionTo) throws IOException {
         val patchDeltaFile = repository.getPatchPath(versionFrom, versionTo).toFile();
         if (!patchDeltaFile.exists()) {
@@ -153,12 +508,12 @@ public class RepositoryService {
         }
     }
 
-    private void applyPatch(String versionFrom, String versionTo) throws IOException {
-        log.debug("Applying patch (from=`{}`, to=`{}`)", versionFrom, versionTo);
+    private void applyPatch(String versionFrom, String versionTo, List<Future<Path>> patchFiles) throws IOException {
+        log.debug("Applying patch (from=`{}`, to=`{}`, patches=`{}`)", versionFrom, versionTo, patchFiles.size());
         patchEventListener.beginApplyPatch(versionFrom, versionTo);
 
         val patchTask = PatchTaskFactory.getInstance().create(repository.getProtocolVersion());
-        patchTask.run(this, patchEventListener, downloadService, repository.getPatchPath(versionFrom, versionTo));
+        patchTask.run(this, patchEventListener, downloadService, patchFiles);
 
         log.debug("Patch applied");
         patchEventListener.finishApplyPatch(versionFrom, versionTo);
@@ -167,17 +522,87 @@ public class RepositoryService {
     private void downloadPatch(String versionFrom, String versionTo) throws IOException {
         val url = repository.getRemotePatchURL(versionFrom, versionTo);
         val patchPath = repository.getPatchPath(versionFrom, versionTo);
-
-        patchEventListener.beginDownloadPatch(url);
         Files.createDirectories(patchPath.getParent());
 
+        PatchCache patchCache = settings.getPatchCache();
+        String checksum = getPatchAttribute(versionFrom, versionTo, "checksum");
+        Long expectedSize = parseSize(getPatchAttribute(versionFrom, versionTo, DownloadSizeCostModel.SIZE_ATTRIBUTE));
+        Long expectedChecksum = ChecksumAlgorithm.parse(checksum);
+        String cacheKey = patchCache == null ? null : PatchCache.getKey(url, checksum);
+        if (patchCache != null && fetchFromCache(patchCache, cacheKey, patchPath, expectedSize, expectedChecksum)) {
+            log.info("Deltafile `{}` taken from patch cache", patchPath.getFileName());
+            return;
+        }
+
+        patchEventListener.beginDownloadPatch(url);
         try {
-            downloadService.download(url, patchPath);
+            downloadResumable(url, patchPath);
         } catch (DownloadException e) {
             patchEventListener.error(MessageFormat.format("Downloading patch-file failed from `{0}`", url));
             throw new DownloadException(e, url);
         }
         patchEventListener.finishDownloadPatch(url);
+
+        if (patchCache != null) {
+            try {
+                patchCache.store(cacheKey, patchPath, expectedSize, expectedChecksum);
+            } catch (IOException e) {
+                log.warn("Storing `{}` in patch cache failed", patchPath.getFileName(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the attribute of the patch listed in the versions.gml, or null if the server does not publish it,
+     * e.g. the CRC32 "checksum" of the patch file in descriptor notation
+     */
+    private String getPatchAttribute(String versionFrom, String versionTo, String attribute) {
+        String edge = versionGraph.getEdge(versionFrom, versionTo);
+        return edge == null ? null : edgeAttributes.getOrDefault(edge, Collections.emptyMap()).get(attribute);
+    }
+
+    private static Long parseSize(String size) {
+        if (size == null) {
+            return null;
+        }
+
+        try {
+            return Long.parseLong(size.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid patch size `{}` in {}", size, Repository.BIREUS_VERSIONS_FILE);
+            return null;
+        }
+    }
+
+    /**
+     * A broken cache must not break the checkout, the patch is downloaded instead
+     */
+    private static boolean fetchFromCache(PatchCache patchCache, String cacheKey, Path patchPath, Long size, Long checksum) {
+        try {
+            return patchCache.fetch(cacheKey, patchPath, size, checksum);
+        } catch (IOException e) {
+            log.warn("Reading `{}` from patch cache failed", patchPath.getFileName(), e);
+            return false;
+        }
+    }
+
+    /***
+     * Downloads into a partial file next to the target path, which is only renamed once the download is complete.
+     * A partial file left over by an interrupted download is continued if the download service supports ranges.
+     */
+    private void downloadResumable(URL url, Path path) throws IOException {
+        Path partialPath = path.resolveSibling(path.getFileName() + PARTIAL_FILE_SUFFIX);
+        long offset = Files.exists(partialPath) ? Files.size(partialPath) : 0;
+
+        if (offset > 0 && downloadService.supportsRanges()) {
+            log.info("Resuming download of `{}` at byte {}", url, offset);
+            downloadService.download(url, partialPath, offset);
+        } else {
+            Files.deleteIfExists(partialPath);
+            downloadService.download(url, partialPath);
+        }
+
+        Files.move(partialPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
     private void updateRepositoryFromRemote() throws IOException {
@@ -188,10 +613,7 @@ public class RepositoryService {
         if (!repository.getLatestVersion().equals(newRepository.getLatestVersion())) {
             log.debug("Latest version has changed (old=`{}`, new=`{}`), updating {}", repository.getLatestVersion(), newRepository.getLatestVersion(), Repository.BIREUS_INFO_FILE);
             repository.setLatestVersion(newRepository.getLatestVersion());
-
-            log.trace("Delete and rewrite {}", Repository.BIREUS_INFO_FILE);
-            Files.delete(repository.getInfoPath());
-            objectMapper.writeValue(repository.getInfoPath().toFile(), repository);
+            writeRepositoryInfo();
 
             log.trace("Delete and rewrite {}", Repository.BIREUS_VERSIONS_FILE);
             Files.delete(repository.getVersionGraphPath());
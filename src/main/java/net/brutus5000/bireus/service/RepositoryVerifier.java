@@ -0,0 +1,224 @@
+package net.brutus5000.bireus.service;
+
+import lombok.extern.slf4j.Slf4j;
+import net.brutus5000.bireus.data.Repository;
+import net.brutus5000.bireus.patching.ChecksumAlgorithm;
+import net.brutus5000.bireus.patching.ChecksumIndex;
+import org.apache.commons.io.FileUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Checksum;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Verifies the files of the checked out version against the checksum index written by the last checkout
+ * and repairs broken files by downloading them from the version folder of the server.
+ * <p>
+ * Zip archives are verified against the checksum of the local archive. Since the server archive differs bytewise
+ * from the locally re-compressed one, a downloaded archive is verified by the checksums of its entries instead.
+ */
+@Slf4j
+class RepositoryVerifier {
+    private final RepositoryService repositoryService;
+    private final Repository repository;
+    private final PatchEventListener patchEventListener;
+    private final DownloadService downloadService;
+
+    RepositoryVerifier(RepositoryService repositoryService) {
+        this.repositoryService = repositoryService;
+        this.repository = repositoryService.getRepository();
+        this.patchEventListener = repositoryService.getPatchEventListener();
+        this.downloadService = repositoryService.getDownloadService();
+    }
+
+    /***
+     * Hashes all files listed in the checksum index in parallel
+     * @param repair if true, broken files are replaced by the files of the server
+     * @return the broken files, including the repaired ones
+     * @throws IOException if there is no checksum index or on IO errors
+     */
+    List<Path> verify(boolean repair) throws IOException {
+        String version = repository.getCurrentVersion();
+        ChecksumIndex manifest = readManifest();
+        ChecksumAlgorithm algorithm = manifest.getAlgorithm();
+
+        log.info("Verifying {} files of version `{}`", manifest.getFiles().size(), version);
+        patchEventListener.beginVerifyRepository(version);
+
+        ExecutorService executorService = repositoryService.getSettings().getThreadMode()
+                .createExecutor("bireus-verify-", Math.max(1, repositoryService.getSettings().getPatchThreads()));
+        Path temporaryFolder = null;
+        try {
+            Map<String, Future<Boolean>> verifications = new TreeMap<>();
+            manifest.getFiles().forEach((relativePath, entry) -> verifications.put(relativePath, executorService.submit(() ->
+                    isIntact(resolve(relativePath), entry, algorithm))));
+
+            List<Path> brokenFiles = new ArrayList<>();
+            Map<String, Future<?>> repairs = new TreeMap<>();
+            for (Map.Entry<String, Future<Boolean>> verification : verifications.entrySet()) {
+                if (await(verification.getValue())) {
+                    continue;
+                }
+
+                Path file = resolve(verification.getKey());
+                log.warn("File `{}` does not match version `{}`", file, version);
+                patchEventListener.brokenFile(file);
+                brokenFiles.add(file);
+
+                if (repair) {
+                    if (temporaryFolder == null) {
+                        temporaryFolder = repositoryService.createTemporaryFolder("repair_");
+                    }
+                    Path downloadFolder = temporaryFolder;
+                    ChecksumIndex.Entry entry = manifest.getFiles().get(verification.getKey());
+                    repairs.put(verification.getKey(), executorService.submit(() -> {
+                        repairFile(version, verification.getKey(), entry, algorithm, downloadFolder);
+                        return null;
+                    }));
+                }
+            }
+
+            if (!repairs.isEmpty()) {
+                for (Map.Entry<String, Future<?>> pendingRepair : repairs.entrySet()) {
+                    await(pendingRepair.getValue());
+                    updateEntry(manifest.getFiles().get(pendingRepair.getKey()), resolve(pendingRepair.getKey()));
+                }
+                manifest.write(repository.getChecksumIndexPath());
+            }
+
+            log.info("Verification of version `{}` finished, {} broken files", version, brokenFiles.size());
+            patchEventListener.finishVerifyRepository(version);
+            return brokenFiles;
+        } finally {
+            executorService.shutdownNow();
+            if (temporaryFolder != null) {
+                FileUtils.deleteQuietly(temporaryFolder.toFile());
+            }
+        }
+    }
+
+    private ChecksumIndex readManifest() throws IOException {
+        ChecksumIndex manifest = ChecksumIndex.read(repository.getChecksumIndexPath());
+        if (manifest.getFiles().isEmpty()) {
+            String message = MessageFormat.format("There are no checksums for version `{0}`, they are written by the next checkout", repository.getCurrentVersion());
+            patchEventListener.error(message);
+            throw new IOException(message);
+        }
+        return manifest;
+    }
+
+    private Path resolve(String relativePath) {
+        return repository.getAbsolutePath().resolve(relativePath);
+    }
+
+    private static boolean isIntact(Path file, ChecksumIndex.Entry entry, ChecksumAlgorithm algorithm) throws IOException {
+        if (!Files.isRegularFile(file) || Files.size(file) != entry.getSize()) {
+            return false;
+        }
+        return algorithm.checksum(file) == entry.getChecksum();
+    }
+
+    private void repairFile(String version, String relativePath, ChecksumIndex.Entry entry, ChecksumAlgorithm algorithm, Path downloadFolder) throws IOException {
+        Path file = resolve(relativePath);
+        URL url = repository.getRemoteFileURL(version, relativePath);
+        Path downloadedFile = Files.createTempFile(downloadFolder, "file_", ".tmp");
+
+        log.debug("Repairing `{}` from `{}`", file, url);
+        patchEventListener.beginRepairFile(file);
+        downloadService.download(url, downloadedFile);
+
+        boolean intact = entry.isArchive()
+                ? isIntactArchive(downloadedFile, entry, algorithm)
+                : isIntact(downloadedFile, entry, algorithm);
+        if (!intact) {
+            throw new IOException(MessageFormat.format("The file `{0}` of the server does not match version `{1}`", url, version));
+        }
+
+        if (entry.isArchive()) {
+            entry.setChecksum(algorithm.checksum(downloadedFile));
+        }
+
+        Files.createDirectories(file.getParent());
+        Files.move(downloadedFile, file, StandardCopyOption.REPLACE_EXISTING);
+        patchEventListener.finishRepairFile(file);
+    }
+
+    /***
+     * Checks the entries of an archive against the checksums of the patch descriptor
+     */
+    private static boolean isIntactArchive(Path archive, ChecksumIndex.Entry entry, ChecksumAlgorithm algorithm) throws IOException {
+        if (entry.getEntries() == null || entry.getEntries().isEmpty()) {
+            log.warn("There are no checksums for the entries of archive `{}`, it can't be verified", archive);
+            return true;
+        }
+
+        try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+            for (Map.Entry<String, Long> archiveEntry : entry.getEntries().entrySet()) {
+                ZipEntry zipEntry = zipFile.getEntry(archiveEntry.getKey());
+                if (zipEntry == null || zipEntry.isDirectory()) {
+                    log.debug("Archive `{}` is missing entry `{}`", archive, archiveEntry.getKey());
+                    return false;
+                }
+
+                Checksum checksum = algorithm.create();
+                byte[] buffer = new byte[64 * 1024];
+                try (InputStream inputStream = zipFile.getInputStream(zipEntry)) {
+                    int read;
+                    while ((read = inputStream.read(buffer)) != -1) {
+                        checksum.update(buffer, 0, read);
+                    }
+                }
+
+                if (checksum.getValue() != archiveEntry.getValue()) {
+                    log.debug("Entry `{}` of archive `{}` has an invalid checksum", archiveEntry.getKey(), archive);
+                    return false;
+                }
+            }
+            return true;
+        } catch (ZipException e) {
+            log.debug("Archive `{}` is not a valid zip file", archive, e);
+            return false;
+        }
+    }
+
+    private static void updateEntry(ChecksumIndex.Entry entry, Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        entry.setSize(attributes.size());
+        entry.setModified(attributes.lastModifiedTime().toMillis());
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while verifying");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
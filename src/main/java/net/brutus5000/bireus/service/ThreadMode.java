@@ -0,0 +1,112 @@
+package net.brutus5000.bireus.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Defines which kind of threads run the downloads and file patches of a checkout
+ */
+@Slf4j
+public enum ThreadMode {
+    /**
+     * Bounded pools of platform daemon threads, sized by the {@link CheckoutSettings}
+     */
+    PLATFORM,
+    /**
+     * A new virtual thread per task, the thread limits of the {@link CheckoutSettings} only decide
+     * whether work runs in parallel at all. Requires Java 21, older runtimes fall back to {@link #PLATFORM}.
+     */
+    VIRTUAL;
+
+    private volatile ExecutorService sharedExecutor;
+
+    /***
+     * @return true if this mode is available in the Java runtime
+     */
+    public boolean isSupported() {
+        return this != VIRTUAL || VirtualThreadHolder.THREAD_PER_TASK_METHOD != null;
+    }
+
+    /***
+     * Creates an executor of this mode
+     * @param threadPrefix prefix of the thread names
+     * @param threads maximum number of platform threads, 0 or less for an unbounded executor
+     * @return the new executor, it has to be shut down by the caller
+     */
+    public ExecutorService createExecutor(String threadPrefix, int threads) {
+        if (this == VIRTUAL) {
+            if (isSupported()) {
+                return VirtualThreadHolder.createExecutor(threadPrefix);
+            }
+            log.debug("Virtual threads require Java 21, using platform threads for `{}`", threadPrefix);
+        }
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, threadPrefix + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return threads > 0 ? Executors.newFixedThreadPool(threads, threadFactory) : Executors.newCachedThreadPool(threadFactory);
+    }
+
+    /***
+     * @return an unbounded executor of this mode shared by all asynchronous checkouts
+     */
+    public ExecutorService getSharedExecutor() {
+        if (sharedExecutor == null) {
+            synchronized (this) {
+                if (sharedExecutor == null) {
+                    sharedExecutor = createExecutor("bireus-checkout-", 0);
+                }
+            }
+        }
+        return sharedExecutor;
+    }
+
+    /**
+     * Looks up the virtual thread API lazily, since the library is compiled for Java 8
+     */
+    private static class VirtualThreadHolder {
+        static final Method OF_VIRTUAL_METHOD;
+        static final Method NAME_METHOD;
+        static final Method FACTORY_METHOD;
+        static final Method THREAD_PER_TASK_METHOD;
+
+        static {
+            Method ofVirtualMethod = null;
+            Method nameMethod = null;
+            Method factoryMethod = null;
+            Method threadPerTaskMethod = null;
+            try {
+                Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+                ofVirtualMethod = Thread.class.getMethod("ofVirtual");
+                nameMethod = builderClass.getMethod("name", String.class, long.class);
+                factoryMethod = builderClass.getMethod("factory");
+                threadPerTaskMethod = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            } catch (ClassNotFoundException | NoSuchMethodException e) {
+                log.debug("Virtual threads are not available", e);
+                threadPerTaskMethod = null;
+            }
+            OF_VIRTUAL_METHOD = ofVirtualMethod;
+            NAME_METHOD = nameMethod;
+            FACTORY_METHOD = factoryMethod;
+            THREAD_PER_TASK_METHOD = threadPerTaskMethod;
+        }
+
+        static ExecutorService createExecutor(String threadPrefix) {
+            try {
+                Object builder = NAME_METHOD.invoke(OF_VIRTUAL_METHOD.invoke(null), threadPrefix, 1L);
+                ThreadFactory threadFactory = (ThreadFactory) FACTORY_METHOD.invoke(builder);
+                return (ExecutorService) THREAD_PER_TASK_METHOD.invoke(null, threadFactory);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Virtual thread executor can't be created", e);
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package net.brutus5000.bireus;
 
 import net.brutus5000.bireus.service.ArchiveService;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -9,12 +10,26 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZInputStream;
+import org.tukaani.xz.XZOutputStream;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static net.brutus5000.bireus.TestUtil.assertFileEquals;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
 
 @RunWith(MockitoJUnitRunner.class)
 public class ArchiveServiceTest {
@@ -48,6 +63,17 @@ public class ArchiveServiceTest {
         assertFileEquals(tempDirectory, rawData, Paths.get("sub", "subfolder-file.txt"));
     }
 
+    @Test
+    public void testExtractZip_SelectedEntries() throws Exception {
+        Path testArchive = archiveData.resolve("zip/test.zip");
+
+        ArchiveService.extractZip(testArchive, tempDirectory, entryName -> entryName.equals("sub/subfolder-file.txt"));
+
+        assertFalse(Files.exists(tempDirectory.resolve("root-file.txt")));
+        assertFalse(Files.exists(tempDirectory.resolve("long-file.txt")));
+        assertFileEquals(tempDirectory, rawData, Paths.get("sub", "subfolder-file.txt"));
+    }
+
     @Test(expected = IOException.class)
     public void testExtractZip_WrongFormat() throws Exception {
         Path testArchive = archiveData.resolve("tar_xz/test.tar.xz");
@@ -70,6 +96,52 @@ public class ArchiveServiceTest {
         assertFileEquals(tempDirectory, rawData, Paths.get("sub", "subfolder-file.txt"));
     }
 
+    @Test
+    public void testCompressFolderToZip_ParallelOnBusyExecutor() throws Exception {
+        // the only worker is blocked by the caller, so the caller has to deflate all files by itself
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            executorService.submit(() -> {
+                ArchiveService.compressFolderToZip(rawData, tempDirectory.resolve("test.zip"), executorService, null, entryName -> false);
+                return null;
+            }).get(30, TimeUnit.SECONDS);
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        ArchiveService.extractZip(tempDirectory.resolve("test.zip"), tempDirectory);
+        assertFileEquals(tempDirectory, rawData, "root-file.txt");
+        assertFileEquals(tempDirectory, rawData, "long-file.txt");
+        assertFileEquals(tempDirectory, rawData, Paths.get("sub", "subfolder-file.txt"));
+    }
+
+    @Test
+    public void testCompressFolderToZip_ParallelWithRawEntries() throws Exception {
+        Path testArchive = archiveData.resolve("zip/test.zip");
+        Path sourceFolder = tempDirectory.resolve("source");
+        Path targetDirectory = tempDirectory.resolve("extracted");
+        Files.createDirectories(sourceFolder.resolve("sub"));
+        Files.createDirectory(targetDirectory);
+        Files.copy(rawData.resolve("root-file.txt"), sourceFolder.resolve("root-file.txt"));
+
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        try {
+            ArchiveService.compressFolderToZip(sourceFolder, tempDirectory.resolve("test.zip"), executorService, testArchive,
+                    entryName -> entryName.equals("long-file.txt") || entryName.equals("sub/subfolder-file.txt"));
+        } finally {
+            executorService.shutdownNow();
+        }
+
+        ArchiveService.extractZip(tempDirectory.resolve("test.zip"), targetDirectory);
+
+        assertFileEquals(targetDirectory, rawData, "root-file.txt");
+        assertFileEquals(targetDirectory, rawData, "long-file.txt");
+        assertFileEquals(targetDirectory, rawData, Paths.get("sub", "subfolder-file.txt"));
+        try (Stream<Path> pathStream = Files.list(tempDirectory)) {
+            assertFalse("scatter files are removed", pathStream.anyMatch(path -> path.getFileName().toString().startsWith("scatter_")));
+        }
+    }
+
     @Test
     public void testExtractTarXz() throws Exception {
         Path testArchive = archiveData.resolve("tar_xz/test.tar.xz");
@@ -81,6 +153,74 @@ public class ArchiveServiceTest {
         assertFileEquals(tempDirectory, rawData, Paths.get("sub", "subfolder-file.txt"));
     }
 
+    @Test
+    public void testExtractTarXz_EntryHandler() throws Exception {
+        Path testArchive = archiveData.resolve("tar_xz/test.tar.xz");
+        Path consumedFile = tempDirectory.resolve("root-file.txt");
+        ByteArrayOutputStream consumedContent = new ByteArrayOutputStream();
+
+        ArchiveService.extractTarXz(testArchive, tempDirectory, (entry, path, inputStream) -> {
+            if (path.equals(consumedFile)) {
+                IOUtils.copy(inputStream, consumedContent);
+                return true;
+            }
+            return false;
+        });
+
+        assertFalse(Files.exists(consumedFile));
+        assertArrayEquals(Files.readAllBytes(rawData.resolve("root-file.txt")), consumedContent.toByteArray());
+        assertFileEquals(tempDirectory, rawData, "long-file.txt");
+        assertFileEquals(tempDirectory, rawData, Paths.get("sub", "subfolder-file.txt"));
+    }
+
+    @Test
+    public void testExtractTarXz_MultiBlock() throws Exception {
+        Path testArchive = createMultiBlockArchive();
+        Path targetDirectory = tempDirectory.resolve("extracted");
+        Files.createDirectory(targetDirectory);
+
+        ArchiveService.extractTarXz(testArchive, targetDirectory, 4, (entry, path, inputStream) -> false);
+
+        assertFileEquals(targetDirectory, rawData, "root-file.txt");
+        assertFileEquals(targetDirectory, rawData, "long-file.txt");
+        assertFileEquals(targetDirectory, rawData, Paths.get("sub", "subfolder-file.txt"));
+    }
+
+    @Test
+    public void testExtractTarXz_MultiBlockOnIdleExecutor() throws Exception {
+        Path testArchive = createMultiBlockArchive();
+        Path targetDirectory = tempDirectory.resolve("extracted");
+        Files.createDirectory(targetDirectory);
+
+        // the executor never runs the blocks, so the reader has to decode all of them by itself
+        List<Runnable> queuedBlocks = new ArrayList<>();
+        ArchiveService.extractTarXz(testArchive, targetDirectory, queuedBlocks::add, 4, (entry, path, inputStream) -> false);
+
+        assertFalse(queuedBlocks.isEmpty());
+        assertFileEquals(targetDirectory, rawData, "root-file.txt");
+        assertFileEquals(targetDirectory, rawData, "long-file.txt");
+        assertFileEquals(targetDirectory, rawData, Paths.get("sub", "subfolder-file.txt"));
+    }
+
+    /***
+     * Re-compresses the test tar with a new xz block every kilobyte
+     */
+    private Path createMultiBlockArchive() throws IOException {
+        Path testArchive = tempDirectory.resolve("multi-block.tar.xz");
+
+        byte[] tar;
+        try (InputStream inputStream = new XZInputStream(Files.newInputStream(archiveData.resolve("tar_xz/test.tar.xz")))) {
+            tar = IOUtils.toByteArray(inputStream);
+        }
+        try (XZOutputStream outputStream = new XZOutputStream(Files.newOutputStream(testArchive), new LZMA2Options(0))) {
+            for (int offset = 0; offset < tar.length; offset += 1024) {
+                outputStream.write(tar, offset, Math.min(1024, tar.length - offset));
+                outputStream.endBlock();
+            }
+        }
+        return testArchive;
+    }
+
     @Test(expected = IOException.class)
     public void testExtractTarXz_WrongFileType() throws Exception {
         Path testArchive = archiveData.resolve("zip/test.zip");
@@ -4,25 +4,50 @@ package net.brutus5000.bireus;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import net.brutus5000.bireus.data.Repository;
 import net.brutus5000.bireus.mocks.DownloadServiceMock;
+import net.brutus5000.bireus.patching.ChecksumAlgorithm;
+import net.brutus5000.bireus.patching.ChecksumIndex;
+import net.brutus5000.bireus.patching.PatchJournal;
+import net.brutus5000.bireus.patching.PatchMode;
+import net.brutus5000.bireus.patching.UnchangedFileStrategy;
+import net.brutus5000.bireus.service.HopCountCostModel;
+import net.brutus5000.bireus.service.PatchCache;
 import net.brutus5000.bireus.service.PatchEventListener;
+import net.brutus5000.bireus.service.PatchStatistics;
+import net.brutus5000.bireus.service.ThreadMode;
 import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.jgrapht.GraphPath;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static junit.framework.TestCase.*;
 import static net.brutus5000.bireus.TestUtil.assertFileEquals;
 import static net.brutus5000.bireus.TestUtil.assertZipFileEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 @RunWith(MockitoJUnitRunner.class)
 public class BireusClientTest {
@@ -88,6 +113,149 @@ public class BireusClientTest {
         assertZipFileEquals(firstVersionPath, clientRepositoryPath, "changed.zip");
     }
 
+    @Test
+    public void testCheckoutV1_StreamingMemoryLimitExceeded() throws Exception {
+        testGetFromURL();
+        // no patch fits into memory, so all of them are extracted to disk
+        instance.getSettings().setStreamingMemoryLimit(0);
+        addPatchDownloadAction("v2", "v1");
+
+        instance.checkoutVersion("v1");
+
+        assertFileEquals(firstVersionPath, clientRepositoryPath, "changed.txt");
+        assertFileEquals(firstVersionPath, clientRepositoryPath, "unchanged.txt");
+        assertZipFileEquals(firstVersionPath, clientRepositoryPath, "changed.zip");
+    }
+
+    @Test
+    public void testCheckout_PatchCache() throws Exception {
+        testGetFromURL();
+        instance.getSettings().setPatchCache(new PatchCache(Files.createTempDirectory("bireus_cache_"), Long.MAX_VALUE));
+        addPatchDownloadAction("v2", "v1");
+        instance.checkoutVersion("v1");
+        addPatchDownloadAction("v1", "v2");
+        instance.checkoutVersion("v2");
+
+        FileUtils.deleteDirectory(clientRepositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER).resolve(Repository.BIREUS_PATCHES_SUBFOLDER).toFile());
+        // no download action left, the patch has to come from the cache
+        instance.checkoutVersion("v1");
+
+        assertFileEquals(firstVersionPath, clientRepositoryPath, "changed.txt");
+        FileUtils.deleteQuietly(instance.getSettings().getPatchCache().getDirectory().toFile());
+    }
+
+    @Test
+    public void testCheckout_PatchRetention() throws Exception {
+        testGetFromURL();
+        Path patchFolder = clientRepositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER).resolve(Repository.BIREUS_PATCHES_SUBFOLDER);
+        Path backwardPatch = patchFolder.resolve(MessageFormat.format(Repository.BIREUS_PATCH_FILE_PATTERN, "v2", "v1"));
+        Path forwardPatch = patchFolder.resolve(MessageFormat.format(Repository.BIREUS_PATCH_FILE_PATTERN, "v1", "v2"));
+        addPatchDownloadAction("v2", "v1");
+        instance.checkoutVersion("v1");
+
+        // only one patch fits, the patch back to v1 is needed more likely after checking out v2
+        instance.getSettings().getPatchRetentionPolicy().setMaxBytes(Files.size(backwardPatch));
+        addPatchDownloadAction("v1", "v2");
+        instance.checkoutVersion("v2");
+
+        assertTrue(Files.exists(backwardPatch));
+        assertFalse(Files.exists(forwardPatch));
+        PatchStatistics statistics = instance.getPatchStatistics();
+        assertEquals(1, statistics.getFileCount());
+        assertEquals(Files.size(backwardPatch), statistics.getTotalBytes());
+        assertEquals(1, statistics.getEvictedFileCount());
+    }
+
+    @Test
+    public void testCheckoutVersionAsync() throws Exception {
+        testGetFromURL();
+        addPatchDownloadAction("v2", "v1");
+
+        instance.checkoutVersionAsync("v1").get(30, TimeUnit.SECONDS);
+
+        assertFileEquals(firstVersionPath, clientRepositoryPath, "changed.txt");
+        assertZipFileEquals(firstVersionPath, clientRepositoryPath, "changed.zip");
+    }
+
+    @Test
+    public void testCheckoutVersionAsync_VirtualThreads() throws Exception {
+        testGetFromURL();
+        instance.getSettings().setThreadMode(ThreadMode.VIRTUAL);
+        addPatchDownloadAction("v2", "v1");
+
+        instance.checkoutVersionAsync("v1").get(30, TimeUnit.SECONDS);
+
+        assertFileEquals(firstVersionPath, clientRepositoryPath, "changed.txt");
+        assertZipFileEquals(firstVersionPath, clientRepositoryPath, "changed.zip");
+    }
+
+    @Test
+    public void testCheckoutVersionAsync_VirtualThreadsConcurrently() throws Exception {
+        // more concurrent checkouts than carrier threads, a checkout blocking inside a monitor would pin its carrier
+        int repositoryCount = Runtime.getRuntime().availableProcessors() * 2 + 2;
+        List<Path> repositoryPaths = new ArrayList<>();
+        List<CompletableFuture<Void>> checkouts = new ArrayList<>();
+        try {
+            for (int i = 0; i < repositoryCount; i++) {
+                DownloadServiceMock repositoryDownloadService = new DownloadServiceMock();
+                Path repositoryPath = TestPreparator.prepareDownloadForLatestClientRepository(repositoryDownloadService);
+                repositoryPaths.add(repositoryPath);
+                clientRepositoryPath = repositoryPath;
+                BireusClient client = BireusClient.getFromURL(new URL("http://someurl/somefolder"), repositoryPath, patchEventListener, repositoryDownloadService);
+                client.getSettings().setThreadMode(ThreadMode.VIRTUAL);
+                repositoryDownloadService.addDownloadAction((url, path) -> Files.copy(
+                        TestPreparator.getServerRepositoryPath()
+                                .resolve(Repository.BIREUS_PATCHES_SUBFOLDER)
+                                .resolve(MessageFormat.format(Repository.BIREUS_PATCH_FILE_PATTERN, "v2", "v1")),
+                        path, StandardCopyOption.REPLACE_EXISTING));
+                checkouts.add(client.checkoutVersionAsync("v1"));
+            }
+
+            CompletableFuture.allOf(checkouts.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+
+            for (Path repositoryPath : repositoryPaths) {
+                assertFileEquals(firstVersionPath, repositoryPath, "changed.txt");
+            }
+        } finally {
+            checkouts.forEach(checkout -> checkout.cancel(true));
+            repositoryPaths.forEach(repositoryPath -> FileUtils.deleteQuietly(repositoryPath.toFile()));
+        }
+    }
+
+    @Test
+    public void testCheckoutVersionAsync_Cancel() throws Exception {
+        testGetFromURL();
+        CountDownLatch downloadStarted = new CountDownLatch(1);
+        downloadService.addDownloadAction((url, path) -> {
+            downloadStarted.countDown();
+            try {
+                Thread.sleep(30_000);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("download interrupted");
+            }
+        });
+
+        CompletableFuture<Void> checkout = instance.checkoutVersionAsync("v1");
+        assertTrue(downloadStarted.await(30, TimeUnit.SECONDS));
+        assertTrue(checkout.cancel(true));
+        assertTrue(checkout.isCancelled());
+
+        // the next checkout waits for the cancelled one to clean up
+        addPatchDownloadAction("v2", "v1");
+        instance.checkoutVersion("v1");
+
+        assertFileEquals(firstVersionPath, clientRepositoryPath, "changed.txt");
+        assertEquals(0, Files.list(clientRepositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER).resolve(Repository.BIREUS_TMP_SUBFOLDER)).count());
+    }
+
+    private void addPatchDownloadAction(String versionFrom, String versionTo) {
+        downloadService.addDownloadAction((url, path) -> Files.copy(
+                TestPreparator.getServerRepositoryPath()
+                        .resolve(Repository.BIREUS_PATCHES_SUBFOLDER)
+                        .resolve(MessageFormat.format(Repository.BIREUS_PATCH_FILE_PATTERN, versionFrom, versionTo)),
+                path, StandardCopyOption.REPLACE_EXISTING));
+    }
+
     @Test
     public void testSecondCheckoutWitPatchAlreadyOnDisk() throws Exception {
         testCheckoutV1();
@@ -162,6 +330,395 @@ public class BireusClientTest {
         assertZipFileEquals(latestVersionPath, clientRepositoryPath, "changed.zip");
     }
 
+    @Test
+    public void testCheckoutLatestVersion_ChecksumIndex() throws Exception {
+        checkoutLatestVersionFromV1();
+
+        ChecksumIndex checksumIndex = ChecksumIndex.read(clientRepositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER).resolve(Repository.BIREUS_CHECKSUM_INDEX_FILE));
+        Path changedFile = clientRepositoryPath.resolve("changed.txt");
+        assertEquals(Long.valueOf(FileUtils.checksumCRC32(changedFile.toFile())), checksumIndex.getChecksum(ChecksumAlgorithm.CRC32, clientRepositoryPath, changedFile));
+        assertNull("zip files are not indexed", checksumIndex.getChecksum(ChecksumAlgorithm.CRC32, clientRepositoryPath, clientRepositoryPath.resolve("changed.zip")));
+
+        Files.setLastModifiedTime(changedFile, FileTime.fromMillis(0));
+        assertNull("modified files are not trusted", checksumIndex.getChecksum(ChecksumAlgorithm.CRC32, clientRepositoryPath, changedFile));
+    }
+
+    @Test
+    public void testVerifyAndRepair() throws Exception {
+        checkoutLatestVersionFromV1();
+        FileUtils.writeStringToFile(clientRepositoryPath.resolve("changed.txt").toFile(), "Broken file", "utf-8");
+        Files.delete(clientRepositoryPath.resolve("new_folder").resolve("new_file.txt"));
+
+        assertEquals(Arrays.asList(clientRepositoryPath.resolve("changed.txt"), clientRepositoryPath.resolve("new_folder").resolve("new_file.txt")),
+                instance.verify());
+
+        // the repairs are downloaded concurrently, so each action has to serve the requested file
+        DownloadServiceMock.DownloadAction fileDownload = (url, path) -> {
+            String relativePath = url.getPath().substring(url.getPath().indexOf("/v2/") + 4);
+            Files.copy(latestVersionPath.resolve(relativePath), path, StandardCopyOption.REPLACE_EXISTING);
+        };
+        downloadService.addDownloadAction(fileDownload);
+        downloadService.addDownloadAction(fileDownload);
+
+        assertEquals(2, instance.repair().size());
+
+        assertFileEquals(latestVersionPath, clientRepositoryPath, "changed.txt");
+        assertFileEquals(latestVersionPath, clientRepositoryPath, Paths.get("new_folder", "new_file.txt"));
+        assertTrue(instance.verify().isEmpty());
+    }
+
+    @Test
+    public void testVerifyAndRepair_AfterClone() throws Exception {
+        testGetFromURL();
+
+        assertTrue(instance.verify().isEmpty());
+
+        FileUtils.writeStringToFile(clientRepositoryPath.resolve("changed.zip").toFile(), "Broken archive", "utf-8");
+        assertEquals(Collections.singletonList(clientRepositoryPath.resolve("changed.zip")), instance.verify());
+
+        downloadService.addDownloadAction((url, path) -> {
+            assertTrue(url.getPath().endsWith("/v2/changed.zip"));
+            Files.copy(latestVersionPath.resolve("changed.zip"), path, StandardCopyOption.REPLACE_EXISTING);
+        });
+
+        assertEquals(1, instance.repair().size());
+
+        assertFileEquals(latestVersionPath, clientRepositoryPath, "changed.zip");
+        assertTrue(instance.verify().isEmpty());
+    }
+
+    @Test
+    public void testVerifyAndRepair_Archive() throws Exception {
+        checkoutLatestVersionFromV1();
+        FileUtils.writeStringToFile(clientRepositoryPath.resolve("changed.zip").toFile(), "Broken archive", "utf-8");
+
+        assertEquals(Collections.singletonList(clientRepositoryPath.resolve("changed.zip")), instance.verify());
+
+        downloadService.addDownloadAction((url, path) -> {
+            assertTrue(url.getPath().endsWith("/v2/changed.zip"));
+            Files.copy(latestVersionPath.resolve("changed.zip"), path, StandardCopyOption.REPLACE_EXISTING);
+        });
+
+        assertEquals(1, instance.repair().size());
+
+        assertZipFileEquals(latestVersionPath, clientRepositoryPath, "changed.zip");
+        assertTrue(instance.verify().isEmpty());
+    }
+
+    @Test
+    public void testCheckoutLatestVersion_Sequential() throws Exception {
+        clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+        instance.getSettings().setPatchThreads(1);
+
+        downloadService.addReadAction(url -> Files.readAllBytes(TestPreparator.getServerRepositoryPath().resolve(Repository.BIREUS_INFO_FILE)));
+        downloadService.addDownloadAction((url, path) -> {
+            Path srcPath = TestPreparator.getServerRepositoryPath()
+                    .resolve(Repository.BIREUS_PATCHES_SUBFOLDER)
+                    .resolve(MessageFormat.format(Repository.BIREUS_PATCH_FILE_PATTERN, "v1", "v2"));
+            Files.createDirectories(path.getParent());
+            Files.copy(srcPath, path);
+        });
+
+        instance.checkoutLatestVersion();
+
+        assertFalse(Files.exists(clientRepositoryPath.resolve("removed_folder").resolve("obsolete.txt")));
+        assertFileEquals(latestVersionPath, clientRepositoryPath, Paths.get("new_folder", "new_file.txt"));
+        assertFileEquals(latestVersionPath, clientRepositoryPath, "changed.txt");
+        assertFileEquals(latestVersionPath, clientRepositoryPath, "unchanged.txt");
+        assertZipFileEquals(latestVersionPath, clientRepositoryPath, Paths.get("zip_sub", "changed-subfolder.test"));
+        assertZipFileEquals(latestVersionPath, clientRepositoryPath, "changed.zip");
+    }
+
+    @Test
+    public void testCheckoutLatestVersion_ParallelWorkers() throws Exception {
+        clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+        // the archives are re-compressed on the patch workers, too
+        instance.getSettings().setPatchThreads(4);
+
+        downloadService.addReadAction(url -> Files.readAllBytes(TestPreparator.getServerRepositoryPath().resolve(Repository.BIREUS_INFO_FILE)));
+        addPatchDownloadAction("v1", "v2");
+
+        instance.checkoutLatestVersion();
+
+        assertLatestVersionCheckedOut();
+        assertTrue(instance.verify().isEmpty());
+    }
+
+    @Test
+    public void testCheckoutLatestVersion_InPlace() throws Exception {
+        clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+        instance.getSettings().setPatchMode(PatchMode.IN_PLACE);
+
+        downloadService.addReadAction(url -> Files.readAllBytes(TestPreparator.getServerRepositoryPath().resolve(Repository.BIREUS_INFO_FILE)));
+        downloadService.addDownloadAction((url, path) -> {
+            Path srcPath = TestPreparator.getServerRepositoryPath()
+                    .resolve(Repository.BIREUS_PATCHES_SUBFOLDER)
+                    .resolve(MessageFormat.format(Repository.BIREUS_PATCH_FILE_PATTERN, "v1", "v2"));
+            Files.createDirectories(path.getParent());
+            Files.copy(srcPath, path);
+        });
+
+        instance.checkoutLatestVersion();
+
+        assertFalse(Files.exists(clientRepositoryPath.resolve("removed_folder")));
+        assertFalse(Files.exists(clientRepositoryPath.resolve("removed.txt")));
+        assertFalse(Files.exists(clientRepositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER).resolve(Repository.BIREUS_JOURNAL_FILE)));
+        assertFileEquals(latestVersionPath, clientRepositoryPath, Paths.get("new_folder", "new_file.txt"));
+        assertFileEquals(latestVersionPath, clientRepositoryPath, "changed.txt");
+        assertFileEquals(latestVersionPath, clientRepositoryPath, "unchanged.txt");
+        assertZipFileEquals(latestVersionPath, clientRepositoryPath, Paths.get("zip_sub", "changed-subfolder.test"));
+        assertZipFileEquals(latestVersionPath, clientRepositoryPath, "changed.zip");
+    }
+
+    @Test
+    public void testCheckoutVersionChain() throws Exception {
+        clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
+        TestPreparator.prepareVersionChain(clientRepositoryPath, downloadService);
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+
+        instance.checkoutVersion("v3");
+
+        assertVersionChainCheckedOut();
+    }
+
+    @Test
+    public void testCheckoutVersionChain_InPlace() throws Exception {
+        clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
+        TestPreparator.prepareVersionChain(clientRepositoryPath, downloadService);
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+        instance.getSettings().setPatchMode(PatchMode.IN_PLACE);
+
+        instance.checkoutVersion("v3");
+
+        assertVersionChainCheckedOut();
+    }
+
+    @Test
+    public void testCheckoutVersionChain_NotCoalesced() throws Exception {
+        clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
+        TestPreparator.prepareVersionChain(clientRepositoryPath, downloadService);
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+        instance.getSettings().setCoalescePatches(false);
+
+        instance.checkoutVersion("v3");
+
+        assertVersionChainCheckedOut();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCheckoutVersionChain_CheapestPath() throws Exception {
+        clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
+        TestPreparator.prepareVersionChain(clientRepositoryPath, downloadService);
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+
+        instance.checkoutVersion("v3");
+
+        ArgumentCaptor<GraphPath> patchPath = ArgumentCaptor.forClass(GraphPath.class);
+        verify(patchEventListener).foundPatchPath(patchPath.capture());
+        assertEquals(Arrays.asList("v1", "v2", "v3"), patchPath.getValue().getVertexList());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testCheckoutVersionChain_HopCount() throws Exception {
+        clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
+        // the patches of the chain are not served
+        TestPreparator.prepareVersionChain(clientRepositoryPath, new DownloadServiceMock());
+        // the server patch v1_to_v2 is served as the direct patch, so v3 gets the content of v2
+        downloadService.addDownloadAction((url, path) -> {
+            assertTrue(url.getPath().endsWith(MessageFormat.format(Repository.BIREUS_PATCH_FILE_PATTERN, "v1", "v3")));
+            Files.createDirectories(path.getParent());
+            Files.copy(TestPreparator.getServerRepositoryPath()
+                    .resolve(Repository.BIREUS_PATCHES_SUBFOLDER)
+                    .resolve(MessageFormat.format(Repository.BIREUS_PATCH_FILE_PATTERN, "v1", "v2")), path);
+        });
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+        instance.getSettings().setPatchCostModel(new HopCountCostModel());
+
+        instance.checkoutVersion("v3");
+
+        ArgumentCaptor<GraphPath> patchPath = ArgumentCaptor.forClass(GraphPath.class);
+        verify(patchEventListener).foundPatchPath(patchPath.capture());
+        assertEquals(Arrays.asList("v1", "v3"), patchPath.getValue().getVertexList());
+        Repository repository = new ObjectMapper().readValue(clientRepositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER).resolve(Repository.BIREUS_INFO_FILE).toFile(), Repository.class);
+        assertEquals("v3", repository.getCurrentVersion());
+        assertLatestVersionCheckedOut();
+    }
+
+    @Test
+    public void testCheckoutLatestVersion_Snapshot() throws Exception {
+        clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
+        TestPreparator.prepareExpensivePatch(clientRepositoryPath, downloadService);
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+
+        instance.checkoutVersion("v2");
+
+        verify(patchEventListener, never()).foundPatchPath(any());
+        Repository repository = new ObjectMapper().readValue(clientRepositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER).resolve(Repository.BIREUS_INFO_FILE).toFile(), Repository.class);
+        assertEquals("v2", repository.getCurrentVersion());
+
+        assertFalse(Files.exists(clientRepositoryPath.resolve("removed_folder").resolve("obsolete.txt")));
+        assertFileEquals(latestVersionPath, clientRepositoryPath, Paths.get("new_folder", "new_file.txt"));
+        assertFileEquals(latestVersionPath, clientRepositoryPath, "changed.txt");
+        assertFileEquals(latestVersionPath, clientRepositoryPath, "unchanged.txt");
+        assertFileEquals(latestVersionPath, clientRepositoryPath, "changed.zip");
+        assertTrue(instance.verify().isEmpty());
+    }
+
+    @Test
+    public void testCheckoutLatestVersion_SnapshotWithoutPatchPath() throws Exception {
+        clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
+        TestPreparator.prepareMissingPatch(clientRepositoryPath, downloadService, 2200L);
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+
+        instance.checkoutVersion("v2");
+
+        verify(patchEventListener, never()).noPatchPath(any());
+        assertLatestVersionCheckedOut();
+    }
+
+    @Test
+    public void testCheckoutLatestVersion_NoPatchPath() throws Exception {
+        clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
+        TestPreparator.prepareMissingPatch(clientRepositoryPath, downloadService, null);
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+
+        try {
+            instance.checkoutVersion("v2");
+            fail("The checkout has to fail without patch path and snapshot size");
+        } catch (BireusException e) {
+            verify(patchEventListener).noPatchPath("v2");
+            verify(patchEventListener, never()).beginDownloadSnapshot(any());
+        }
+    }
+
+    private void checkoutLatestVersionFromV1() throws Exception {
+        checkoutLatestVersionFromV1(UnchangedFileStrategy.HARD_LINK);
+    }
+
+    private void checkoutLatestVersionFromV1(UnchangedFileStrategy unchangedFileStrategy) throws Exception {
+        clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+        instance.getSettings().setUnchangedFileStrategy(unchangedFileStrategy);
+
+        downloadService.addReadAction(url -> Files.readAllBytes(TestPreparator.getServerRepositoryPath().resolve(Repository.BIREUS_INFO_FILE)));
+        downloadService.addDownloadAction((url, path) -> {
+            Path srcPath = TestPreparator.getServerRepositoryPath()
+                    .resolve(Repository.BIREUS_PATCHES_SUBFOLDER)
+                    .resolve(MessageFormat.format(Repository.BIREUS_PATCH_FILE_PATTERN, "v1", "v2"));
+            Files.createDirectories(path.getParent());
+            Files.copy(srcPath, path);
+        });
+
+        instance.checkoutLatestVersion();
+    }
+
+    private void assertLatestVersionCheckedOut() throws Exception {
+        assertFalse(Files.exists(clientRepositoryPath.resolve("removed_folder").resolve("obsolete.txt")));
+        assertFileEquals(latestVersionPath, clientRepositoryPath, Paths.get("new_folder", "new_file.txt"));
+        assertFileEquals(latestVersionPath, clientRepositoryPath, "changed.txt");
+        assertFileEquals(latestVersionPath, clientRepositoryPath, "unchanged.txt");
+        assertZipFileEquals(latestVersionPath, clientRepositoryPath, Paths.get("zip_sub", "changed-subfolder.test"));
+        assertZipFileEquals(latestVersionPath, clientRepositoryPath, "changed.zip");
+    }
+
+    @Test
+    public void testCheckoutLatestVersion_UnchangedFileStrategyCopy() throws Exception {
+        checkoutLatestVersionFromV1(UnchangedFileStrategy.COPY);
+
+        assertLatestVersionCheckedOut();
+        assertTrue(instance.verify().isEmpty());
+    }
+
+    @Test
+    public void testCheckoutLatestVersion_UnchangedFileStrategyHardLink() throws Exception {
+        checkoutLatestVersionFromV1(UnchangedFileStrategy.HARD_LINK);
+
+        assertLatestVersionCheckedOut();
+        assertTrue(instance.verify().isEmpty());
+    }
+
+    @Test
+    public void testCheckoutLatestVersion_UnchangedFileStrategyMove() throws Exception {
+        checkoutLatestVersionFromV1(UnchangedFileStrategy.MOVE);
+
+        assertLatestVersionCheckedOut();
+        assertTrue(instance.verify().isEmpty());
+    }
+
+    private void assertVersionChainCheckedOut() throws Exception {
+        Repository repository = new ObjectMapper().readValue(clientRepositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER).resolve(Repository.BIREUS_INFO_FILE).toFile(), Repository.class);
+        assertEquals("v3", repository.getCurrentVersion());
+
+        // v3 equals v1
+        assertFalse(Files.exists(clientRepositoryPath.resolve("new_folder")));
+        assertFileEquals(firstVersionPath, clientRepositoryPath, Paths.get("removed_folder", "obsolete.txt"));
+        assertFileEquals(firstVersionPath, clientRepositoryPath, "removed.txt");
+        assertFileEquals(firstVersionPath, clientRepositoryPath, "changed.txt");
+        assertFileEquals(firstVersionPath, clientRepositoryPath, "unchanged.txt");
+        assertZipFileEquals(firstVersionPath, clientRepositoryPath, Paths.get("zip_sub", "changed-subfolder.test"));
+        assertZipFileEquals(firstVersionPath, clientRepositoryPath, "changed.zip");
+    }
+
+    @Test
+    public void testLoadRepositoryWithPendingJournal() throws Exception {
+        clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
+
+        Path stagingFolder = clientRepositoryPath
+                .resolve(Repository.BIREUS_INTERAL_FOLDER)
+                .resolve(Repository.BIREUS_TMP_SUBFOLDER)
+                .resolve("staging");
+        Files.createDirectories(stagingFolder);
+        Files.copy(latestVersionPath.resolve("changed.txt"), stagingFolder.resolve("changed.txt"));
+
+        PatchJournal journal = new PatchJournal();
+        journal.setTargetVersion("v2");
+        journal.addReplace(clientRepositoryPath, stagingFolder.resolve("changed.txt"), clientRepositoryPath.resolve("changed.txt"));
+        journal.addDelete(clientRepositoryPath, clientRepositoryPath.resolve("removed.txt"));
+        journal.write(clientRepositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER).resolve(Repository.BIREUS_JOURNAL_FILE));
+
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+
+        Repository repository = new ObjectMapper().readValue(clientRepositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER).resolve(Repository.BIREUS_INFO_FILE).toFile(), Repository.class);
+        assertEquals("v2", repository.getCurrentVersion());
+        assertFalse(Files.exists(clientRepositoryPath.resolve("removed.txt")));
+        assertFalse(Files.exists(clientRepositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER).resolve(Repository.BIREUS_JOURNAL_FILE)));
+        assertFileEquals(latestVersionPath, clientRepositoryPath, "changed.txt");
+    }
+
+    @Test
+    public void testCheckoutWithPendingJournal() throws Exception {
+        clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+
+        // an in-place checkout failed while applying its journal, after the repository was loaded
+        Path stagingFolder = clientRepositoryPath
+                .resolve(Repository.BIREUS_INTERAL_FOLDER)
+                .resolve(Repository.BIREUS_TMP_SUBFOLDER)
+                .resolve("staging");
+        Files.createDirectories(stagingFolder);
+        Files.copy(latestVersionPath.resolve("changed.txt"), stagingFolder.resolve("changed.txt"));
+
+        PatchJournal journal = new PatchJournal();
+        journal.setTargetVersion("v2");
+        journal.addReplace(clientRepositoryPath, stagingFolder.resolve("changed.txt"), clientRepositoryPath.resolve("changed.txt"));
+        journal.addDelete(clientRepositoryPath, clientRepositoryPath.resolve("removed.txt"));
+        journal.write(clientRepositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER).resolve(Repository.BIREUS_JOURNAL_FILE));
+
+        instance.checkoutVersion("v2");
+
+        verify(patchEventListener).checkedOutAlready("v2");
+        Repository repository = new ObjectMapper().readValue(clientRepositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER).resolve(Repository.BIREUS_INFO_FILE).toFile(), Repository.class);
+        assertEquals("v2", repository.getCurrentVersion());
+        assertFalse(Files.exists(clientRepositoryPath.resolve("removed.txt")));
+        assertFalse(Files.exists(clientRepositoryPath.resolve(Repository.BIREUS_INTERAL_FOLDER).resolve(Repository.BIREUS_JOURNAL_FILE)));
+        assertFileEquals(latestVersionPath, clientRepositoryPath, "changed.txt");
+    }
+
     @Test
     public void testCheckoutLatestVersion_EnforcedCrcMismatch() throws Exception {
         clientRepositoryPath = TestPreparator.generateTemporaryClientRepositoryV1();
@@ -201,6 +758,71 @@ public class BireusClientTest {
         assertZipFileEquals(latestVersionPath, clientRepositoryPath, "changed.zip");
     }
 
+    @Test
+    public void testCheckoutLatestVersion_WaitsForAllFallbackDownloads() throws Exception {
+        clientRepositoryPath = TestPreparator.prepareCrcMismatches(downloadService, "changed2.txt", "changed3.txt");
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+
+        DownloadServiceMock.DownloadAction slowFallbackDownload = (url, path) -> {
+            try {
+                TimeUnit.MILLISECONDS.sleep(200);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            Files.copy(latestVersionPath.resolve("changed.txt"), path);
+        };
+        downloadService.addDownloadAction(slowFallbackDownload);
+        downloadService.addDownloadAction(slowFallbackDownload);
+        downloadService.addDownloadAction(slowFallbackDownload);
+
+        instance.checkoutLatestVersion();
+
+        verify(patchEventListener, times(3)).crcMismatch(any());
+        assertFileEquals(latestVersionPath, clientRepositoryPath, "changed.txt");
+        assertEquals(FileUtils.readFileToString(latestVersionPath.resolve("changed.txt").toFile(), "utf-8"),
+                FileUtils.readFileToString(clientRepositoryPath.resolve("changed2.txt").toFile(), "utf-8"));
+        assertEquals(FileUtils.readFileToString(latestVersionPath.resolve("changed.txt").toFile(), "utf-8"),
+                FileUtils.readFileToString(clientRepositoryPath.resolve("changed3.txt").toFile(), "utf-8"));
+        assertTrue(instance.verify().isEmpty());
+    }
+
+    @Test
+    public void testCheckoutLatestVersion_FailingFallbackDownloadCancelsOthers() throws Exception {
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch interrupted = new CountDownLatch(2);
+        clientRepositoryPath = TestPreparator.prepareCrcMismatches(downloadService, "changed2.txt", "changed3.txt");
+        instance = new BireusClient(clientRepositoryPath, patchEventListener, downloadService);
+        instance.getSettings().setFallbackDownloadThreads(3);
+
+        // the fallback downloads run concurrently, changed.txt fails once the other two are running
+        DownloadServiceMock.DownloadAction fallbackDownload = (url, path) -> {
+            try {
+                if (url.getPath().endsWith("/changed.txt")) {
+                    started.await(30, TimeUnit.SECONDS);
+                    throw new IOException("Server error");
+                }
+                started.countDown();
+                new CountDownLatch(1).await(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw new InterruptedIOException();
+            }
+        };
+        downloadService.addDownloadAction(fallbackDownload);
+        downloadService.addDownloadAction(fallbackDownload);
+        downloadService.addDownloadAction(fallbackDownload);
+
+        try {
+            instance.checkoutLatestVersion();
+            fail("The failing fallback download has to fail the checkout");
+        } catch (BireusException e) {
+            assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        }
+
+        // the repository stays at the previous version
+        assertTrue(Files.exists(clientRepositoryPath.resolve("removed_folder").resolve("obsolete.txt")));
+    }
+
     @Test(expected = BireusException.class)
     public void testLoadInvalidRepository() throws Exception {
         clientRepositoryPath = Paths.get("not_existing_path");
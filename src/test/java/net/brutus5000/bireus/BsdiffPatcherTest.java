@@ -0,0 +1,153 @@
+package net.brutus5000.bireus;
+
+import net.brutus5000.bireus.patching.BsdiffPatcher;
+import net.brutus5000.bireus.patching.ChecksumAlgorithm;
+import net.brutus5000.bireus.service.ArchiveService;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BsdiffPatcherTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path oldFile;
+    private Path newFile;
+    private Path patchFile;
+
+    @Before
+    public void setUp() throws Exception {
+        Path serverRepositoryPath = TestPreparator.getServerRepositoryPath();
+        Path patchFolder = temporaryFolder.getRoot().toPath();
+        ArchiveService.extractTarXz(serverRepositoryPath.resolve("__patches__").resolve("v1_to_v2.tar.xz"), patchFolder);
+
+        oldFile = serverRepositoryPath.resolve("v1").resolve("changed.txt");
+        newFile = serverRepositoryPath.resolve("v2").resolve("changed.txt");
+        patchFile = patchFolder.resolve("changed.txt");
+    }
+
+    @Test
+    public void testPatchFromFile() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        BsdiffPatcher.patch(oldFile, BsdiffPatcher.PatchSource.of(patchFile), outputStream);
+
+        assertArrayEquals(Files.readAllBytes(newFile), outputStream.toByteArray());
+    }
+
+    @Test
+    public void testPatchFromMemory() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        BsdiffPatcher.patch(oldFile, BsdiffPatcher.PatchSource.of(Files.readAllBytes(patchFile)), outputStream);
+
+        assertArrayEquals(Files.readAllBytes(newFile), outputStream.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void testPatch_InvalidHeader() throws Exception {
+        byte[] patchData = "BSDIFF39 this is not a patch at all".getBytes(StandardCharsets.US_ASCII);
+
+        BsdiffPatcher.patch(oldFile, BsdiffPatcher.PatchSource.of(patchData), new ByteArrayOutputStream());
+    }
+
+    @Test
+    public void testPatch_OldFileChecksum() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        AtomicLong checksum = new AtomicLong(-1);
+
+        BsdiffPatcher.patch(oldFile, BsdiffPatcher.PatchSource.of(patchFile), outputStream, ChecksumAlgorithm.CRC32, checksum::set);
+
+        assertArrayEquals(Files.readAllBytes(newFile), outputStream.toByteArray());
+        assertEquals(ChecksumAlgorithm.CRC32.checksum(oldFile), checksum.get());
+    }
+
+    @Test
+    public void testPatch_OldFileChecksumWithSeeks() throws Exception {
+        byte[] oldData = new byte[300_000];
+        new Random(42).nextBytes(oldData);
+        Path seekingOldFile = temporaryFolder.newFile().toPath();
+        Files.write(seekingOldFile, oldData);
+
+        // starts before the old file, jumps far ahead and back, skips a few bytes, re-reads a range and never reads the tail
+        long[][] control = {{0, 0, -100}, {1_100, 0, 100_000}, {5_000, 3, -100_000}, {70_000, 0, 10}, {100, 0, -1_000}, {500, 0, 0}};
+        byte[] patchData = createCopyPatch(control);
+        AtomicLong checksum = new AtomicLong(-1);
+
+        BsdiffPatcher.patch(seekingOldFile, BsdiffPatcher.PatchSource.of(patchData), new ByteArrayOutputStream(),
+                ChecksumAlgorithm.CRC32, checksum::set);
+
+        assertEquals(ChecksumAlgorithm.CRC32.checksum(seekingOldFile), checksum.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void testPatch_OldFileRejected() throws Exception {
+        BsdiffPatcher.patch(oldFile, BsdiffPatcher.PatchSource.of(patchFile), new ByteArrayOutputStream(), ChecksumAlgorithm.CRC32,
+                checksum -> {
+                    throw new IOException("Base file rejected");
+                });
+    }
+
+    /***
+     * Creates a bsdiff4 patch from control entries {diff bytes, extra bytes, seek} with an all zero diff block
+     */
+    private static byte[] createCopyPatch(long[][] control) throws IOException {
+        long diffLength = 0;
+        long extraLength = 0;
+        ByteArrayOutputStream controlBlock = new ByteArrayOutputStream();
+        for (long[] entry : control) {
+            for (long value : entry) {
+                controlBlock.write(offsetBytes(value));
+            }
+            diffLength += entry[0];
+            extraLength += entry[1];
+        }
+
+        byte[] controlData = compress(controlBlock.toByteArray());
+        byte[] diffData = compress(new byte[(int) diffLength]);
+        byte[] extraData = compress(new byte[(int) extraLength]);
+
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        patch.write("BSDIFF40".getBytes(StandardCharsets.US_ASCII));
+        patch.write(offsetBytes(controlData.length));
+        patch.write(offsetBytes(diffData.length));
+        patch.write(offsetBytes(diffLength + extraLength));
+        patch.write(controlData);
+        patch.write(diffData);
+        patch.write(extraData);
+        return patch.toByteArray();
+    }
+
+    private static byte[] offsetBytes(long value) {
+        byte[] bytes = new byte[8];
+        long magnitude = Math.abs(value);
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (magnitude >>> (8 * i));
+        }
+        if (value < 0) {
+            bytes[7] |= (byte) 0x80;
+        }
+        return bytes;
+    }
+
+    private static byte[] compress(byte[] data) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (BZip2CompressorOutputStream bzip2 = new BZip2CompressorOutputStream(outputStream)) {
+            bzip2.write(data);
+        }
+        return outputStream.toByteArray();
+    }
+}
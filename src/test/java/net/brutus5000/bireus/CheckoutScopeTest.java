@@ -0,0 +1,57 @@
+package net.brutus5000.bireus;
+
+import net.brutus5000.bireus.service.CheckoutScope;
+import net.brutus5000.bireus.service.ThreadMode;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CheckoutScopeTest {
+    @Test
+    public void testFailureCancelsSiblings() throws Exception {
+        try (CheckoutScope scope = new CheckoutScope(ThreadMode.PLATFORM)) {
+            ExecutorService executorService = scope.createExecutor("test-", 2);
+            CountDownLatch siblingStarted = new CountDownLatch(1);
+            CountDownLatch siblingInterrupted = new CountDownLatch(1);
+
+            Future<?> sibling = scope.submit(executorService, () -> {
+                siblingStarted.countDown();
+                try {
+                    Thread.sleep(30_000);
+                } catch (InterruptedException e) {
+                    siblingInterrupted.countDown();
+                }
+                return null;
+            });
+            assertTrue(siblingStarted.await(30, TimeUnit.SECONDS));
+
+            IOException failure = new IOException("task failed");
+            scope.submit(executorService, () -> {
+                throw failure;
+            });
+
+            assertTrue(siblingInterrupted.await(30, TimeUnit.SECONDS));
+            assertTrue(sibling.isCancelled());
+            assertEquals(failure, scope.getFailure());
+        }
+    }
+
+    @Test
+    public void testVirtualThreadMode() throws Exception {
+        try (CheckoutScope scope = new CheckoutScope(ThreadMode.VIRTUAL)) {
+            ExecutorService executorService = scope.createExecutor("test-", 1);
+
+            String threadName = scope.submit(executorService, () -> Thread.currentThread().getName()).get(30, TimeUnit.SECONDS);
+
+            // older runtimes fall back to platform threads
+            assertTrue(threadName.startsWith("test-"));
+        }
+    }
+}
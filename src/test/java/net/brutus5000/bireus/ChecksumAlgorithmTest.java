@@ -0,0 +1,58 @@
+package net.brutus5000.bireus;
+
+import net.brutus5000.bireus.patching.ChecksumAlgorithm;
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+public class ChecksumAlgorithmTest {
+    private static final byte[] CHECK_INPUT = "123456789".getBytes(StandardCharsets.US_ASCII);
+
+    @Test
+    public void testCrc32() throws Exception {
+        Path file = Paths.get("src/test/resources/archive-data/raw/long-file.txt");
+
+        assertEquals(FileUtils.checksumCRC32(file.toFile()), ChecksumAlgorithm.CRC32.checksum(file));
+        assertEquals(0xcbf43926L, checksum(ChecksumAlgorithm.CRC32, CHECK_INPUT));
+    }
+
+    @Test
+    public void testCrc32c() throws Exception {
+        assumeTrue(ChecksumAlgorithm.CRC32C.isSupported());
+
+        assertEquals(0xe3069283L, checksum(ChecksumAlgorithm.CRC32C, CHECK_INPUT));
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        assertEquals(Long.valueOf(0xe3069283L), ChecksumAlgorithm.parse(ChecksumAlgorithm.format(0xe3069283L)));
+        assertNull(ChecksumAlgorithm.parse("#ZIPFILE"));
+        assertNull(ChecksumAlgorithm.parse(""));
+    }
+
+    @Test
+    public void testFromDescriptor() throws Exception {
+        assertEquals(ChecksumAlgorithm.CRC32, ChecksumAlgorithm.fromDescriptor(null));
+        assertEquals(ChecksumAlgorithm.CRC32, ChecksumAlgorithm.fromDescriptor("crc32"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testFromDescriptor_Unknown() throws Exception {
+        ChecksumAlgorithm.fromDescriptor("md4");
+    }
+
+    private static long checksum(ChecksumAlgorithm algorithm, byte[] input) {
+        Checksum checksum = algorithm.create();
+        checksum.update(input, 0, input.length);
+        return checksum.getValue();
+    }
+}
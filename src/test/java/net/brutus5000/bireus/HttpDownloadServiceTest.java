@@ -0,0 +1,240 @@
+package net.brutus5000.bireus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.brutus5000.bireus.service.DownloadException;
+import net.brutus5000.bireus.service.HttpDownloadService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HttpDownloadServiceTest {
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HttpServer server;
+    private byte[] content;
+    private boolean rangesSupported;
+    private AtomicInteger failingRequests;
+    private AtomicInteger requestCount;
+    /** Range requests after the first byte stall in the middle of the response until it is counted down, may be null. */
+    private CountDownLatch stalledRanges;
+    private AtomicInteger stalledCount;
+    private ExecutorService serverExecutor;
+    private HttpDownloadService instance;
+
+    @Before
+    public void setUp() throws Exception {
+        content = new byte[300_000];
+        new Random(42).nextBytes(content);
+        rangesSupported = true;
+        failingRequests = new AtomicInteger();
+        requestCount = new AtomicInteger();
+        stalledCount = new AtomicInteger();
+
+        serverExecutor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/file", this::serveFile);
+        server.setExecutor(serverExecutor);
+        server.start();
+
+        instance = new HttpDownloadService();
+        instance.setRetryBackoffMillis(1);
+    }
+
+    @After
+    public void tearDown() {
+        if (stalledRanges != null) {
+            stalledRanges.countDown();
+        }
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    private void serveFile(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        if (failingRequests.getAndDecrement() > 0) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        Matcher matcher = range == null ? null : RANGE_PATTERN.matcher(range);
+        int offset = 0;
+        int end = content.length;
+
+        if (rangesSupported) {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+        }
+        if (rangesSupported && matcher != null && matcher.matches()) {
+            offset = Integer.parseInt(matcher.group(1));
+            end = matcher.group(2).isEmpty() ? content.length : Integer.parseInt(matcher.group(2)) + 1;
+            exchange.getResponseHeaders().add("Content-Range", "bytes " + offset + "-" + (end - 1) + "/" + content.length);
+            exchange.sendResponseHeaders(206, end - offset);
+        } else {
+            exchange.sendResponseHeaders(200, content.length);
+        }
+
+        try (OutputStream outputStream = exchange.getResponseBody()) {
+            if (stalledRanges != null && offset > 0) {
+                outputStream.write(content, offset, 1000);
+                outputStream.flush();
+                stalledCount.incrementAndGet();
+                awaitStall();
+                offset += 1000;
+            }
+            outputStream.write(content, offset, end - offset);
+        }
+    }
+
+    private void awaitStall() throws IOException {
+        try {
+            stalledRanges.await();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private URL getURL(String path) throws Exception {
+        return new URL("http://localhost:" + server.getAddress().getPort() + path);
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        Path target = temporaryFolder.getRoot().toPath().resolve("file");
+
+        instance.download(getURL("/file"), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void testDownload_Resume() throws Exception {
+        Path target = temporaryFolder.getRoot().toPath().resolve("file");
+        Files.write(target, Arrays.copyOf(content, 100_000));
+
+        instance.download(getURL("/file"), target, 100_000);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void testDownload_ResumeWithoutRangeSupport() throws Exception {
+        rangesSupported = false;
+        Path target = temporaryFolder.getRoot().toPath().resolve("file");
+        Files.write(target, Arrays.copyOf(content, 100_000));
+
+        instance.download(getURL("/file"), target, 100_000);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void testDownload_Segmented() throws Exception {
+        instance.setSegmentThreshold(1000);
+        instance.setSegmentThreads(4);
+        Path target = temporaryFolder.getRoot().toPath().resolve("file");
+
+        instance.download(getURL("/file"), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(4, requestCount.get());
+    }
+
+    @Test
+    public void testDownload_SegmentedKilledAndResumed() throws Exception {
+        instance.setSegmentThreshold(1000);
+        instance.setSegmentThreads(4);
+        stalledRanges = new CountDownLatch(1);
+        Path target = temporaryFolder.getRoot().toPath().resolve("file.part");
+
+        Thread download = new Thread(() -> {
+            try {
+                instance.download(getURL("/file"), target);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        download.setDaemon(true);
+        download.start();
+
+        // wait until the first segment is complete while the others hang in the middle
+        long deadline = System.currentTimeMillis() + 10_000;
+        while ((stalledCount.get() < 3 || !Files.exists(target) || Files.size(target) < content.length / 4)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // give the client time to write the bytes received before the stall
+        Thread.sleep(200);
+
+        // the state a killed process leaves behind must be a gapless beginning of the file
+        byte[] killedState = Files.readAllBytes(target);
+        assertEquals(content.length / 4, killedState.length);
+        assertArrayEquals(Arrays.copyOf(content, killedState.length), killedState);
+
+        stalledRanges.countDown();
+        Path resumed = temporaryFolder.getRoot().toPath().resolve("resumed.part");
+        Files.write(resumed, killedState);
+        new HttpDownloadService().download(getURL("/file"), resumed, killedState.length);
+        assertArrayEquals(content, Files.readAllBytes(resumed));
+
+        download.join(10_000);
+        assertArrayEquals(content, Files.readAllBytes(target));
+        try (Stream<Path> files = Files.list(temporaryFolder.getRoot().toPath())) {
+            assertTrue(files.noneMatch(file -> file.getFileName().toString().contains(".seg")));
+        }
+    }
+
+    @Test
+    public void testDownload_Retry() throws Exception {
+        failingRequests.set(2);
+        Path target = temporaryFolder.getRoot().toPath().resolve("file");
+
+        instance.download(getURL("/file"), target);
+
+        assertArrayEquals(content, Files.readAllBytes(target));
+        assertEquals(3, requestCount.get());
+    }
+
+    @Test(expected = DownloadException.class)
+    public void testDownload_RetriesExhausted() throws Exception {
+        failingRequests.set(10);
+
+        instance.download(getURL("/file"), temporaryFolder.getRoot().toPath().resolve("file"));
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        assertEquals(content.length, instance.read(getURL("/file")).length);
+    }
+
+    @Test(expected = DownloadException.class)
+    public void testDownload_NotFound() throws Exception {
+        instance.download(getURL("/missing"), temporaryFolder.getRoot().toPath().resolve("missing"));
+    }
+}
@@ -0,0 +1,137 @@
+package net.brutus5000.bireus;
+
+import net.brutus5000.bireus.mocks.DownloadServiceMock;
+import net.brutus5000.bireus.service.MirrorDownloadService;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MirrorDownloadServiceTest {
+    private static final byte[] MIRROR_CONTENT = "mirror".getBytes();
+    private static final byte[] ORIGIN_CONTENT = "origin".getBytes();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path mirrorFolder;
+    private Path targetFolder;
+    private DownloadServiceMock originDownloadService;
+    private MirrorDownloadService instance;
+
+    @Before
+    public void setUp() throws Exception {
+        mirrorFolder = temporaryFolder.newFolder("mirror").toPath();
+        targetFolder = temporaryFolder.newFolder("target").toPath();
+        Files.createDirectories(mirrorFolder.resolve(".bireus/__patches__"));
+
+        originDownloadService = new DownloadServiceMock();
+        instance = new MirrorDownloadService(new URL("http://someurl/repo"))
+                .addLocalMirror(mirrorFolder)
+                .addOrigin(originDownloadService);
+    }
+
+    private void addOriginDownloadAction() {
+        originDownloadService.addDownloadAction((url, path) -> Files.write(path, ORIGIN_CONTENT));
+    }
+
+    /** Fails if a partial file is left at the target, like the download actions of the other tests. */
+    private void addOriginCopyAction() throws IOException {
+        Path originFile = temporaryFolder.newFile().toPath();
+        Files.write(originFile, ORIGIN_CONTENT);
+        originDownloadService.addDownloadAction((url, path) -> Files.copy(originFile, path));
+    }
+
+    @Test
+    public void testDownload_FromMirror() throws Exception {
+        Files.write(mirrorFolder.resolve(".bireus/__patches__/v1_to_v2.tar.xz"), MIRROR_CONTENT);
+        Path target = targetFolder.resolve("patch");
+
+        instance.download(new URL("http://someurl/repo/.bireus/__patches__/v1_to_v2.tar.xz"), target);
+
+        assertArrayEquals(MIRROR_CONTENT, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void testDownload_MissingOnMirror() throws Exception {
+        addOriginDownloadAction();
+        Path target = targetFolder.resolve("patch");
+
+        instance.download(new URL("http://someurl/repo/.bireus/__patches__/v1_to_v2.tar.xz"), target);
+
+        assertArrayEquals(ORIGIN_CONTENT, Files.readAllBytes(target));
+        // a missing file does not make the mirror unhealthy
+        assertTrue(instance.getSources().get(0).isHealthy());
+    }
+
+    @Test
+    public void testRead_MetadataFromOrigin() throws Exception {
+        Files.write(mirrorFolder.resolve("info.json"), MIRROR_CONTENT);
+        originDownloadService.addReadAction(url -> ORIGIN_CONTENT);
+
+        assertArrayEquals(ORIGIN_CONTENT, instance.read(new URL("http://someurl/repo/info.json")));
+    }
+
+    @Test
+    public void testDownload_FailingMirrorIsSkipped() throws Exception {
+        DownloadServiceMock mirrorDownloadService = new DownloadServiceMock();
+        mirrorDownloadService.addDownloadAction((url, path) -> {
+            throw new IOException("connection refused");
+        });
+        instance = new MirrorDownloadService(new URL("http://someurl/repo"))
+                .addMirror("peer", new URL("http://peer/repo"), mirrorDownloadService)
+                .addOrigin(originDownloadService);
+        addOriginDownloadAction();
+        addOriginDownloadAction();
+        URL url = new URL("http://someurl/repo/.bireus/__patches__/v1_to_v2.tar.xz");
+
+        instance.download(url, targetFolder.resolve("first"));
+        MirrorDownloadService.Source mirror = instance.getSources().get(0);
+        assertFalse(mirror.isHealthy());
+        assertEquals(1, mirror.getConsecutiveFailures());
+
+        // the mirror has no more actions, so this would fail if it wasn't skipped
+        instance.download(url, targetFolder.resolve("second"));
+        assertArrayEquals(ORIGIN_CONTENT, Files.readAllBytes(targetFolder.resolve("second")));
+    }
+
+    @Test
+    public void testDownload_PartialFileOfFailingMirrorIsReplaced() throws Exception {
+        DownloadServiceMock mirrorDownloadService = new DownloadServiceMock();
+        mirrorDownloadService.addDownloadAction((url, path) -> {
+            Files.write(path, "mir".getBytes());
+            throw new IOException("connection reset");
+        });
+        instance = new MirrorDownloadService(new URL("http://someurl/repo"))
+                .addMirror("peer", new URL("http://peer/repo"), mirrorDownloadService)
+                .addOrigin(originDownloadService);
+        addOriginCopyAction();
+        Path target = targetFolder.resolve("patch");
+
+        instance.download(new URL("http://someurl/repo/.bireus/__patches__/v1_to_v2.tar.xz"), target);
+
+        assertArrayEquals(ORIGIN_CONTENT, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void testDownloadRanged_FallbackWithoutRanges() throws Exception {
+        addOriginCopyAction();
+        Path target = targetFolder.resolve("patch.part");
+        Files.write(target, "ori".getBytes());
+
+        // the local mirror does not have the patch, the origin can only download the whole file
+        instance.download(new URL("http://someurl/repo/.bireus/__patches__/v1_to_v2.tar.xz"), target, 3);
+
+        assertArrayEquals(ORIGIN_CONTENT, Files.readAllBytes(target));
+    }
+}
@@ -0,0 +1,101 @@
+package net.brutus5000.bireus;
+
+import net.brutus5000.bireus.patching.ChecksumAlgorithm;
+import net.brutus5000.bireus.service.PatchCache;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PatchCacheTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path cacheFolder;
+    private Path workFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        cacheFolder = temporaryFolder.newFolder("cache").toPath();
+        workFolder = temporaryFolder.newFolder("work").toPath();
+    }
+
+    private Path createFile(String name, int size) throws Exception {
+        return Files.write(workFolder.resolve(name), new byte[size]);
+    }
+
+    @Test
+    public void testStoreAndFetch() throws Exception {
+        PatchCache instance = new PatchCache(cacheFolder, 1000);
+        Path patch = createFile("patch", 100);
+        String key = PatchCache.getKey(new URL("http://someurl/__patches__/v1_to_v2.tar.xz"), null);
+
+        assertFalse(instance.fetch(key, workFolder.resolve("miss")));
+        instance.store(key, patch);
+
+        // another instance on the same folder, e.g. of another repository
+        assertTrue(new PatchCache(cacheFolder, 1000).fetch(key, workFolder.resolve("hit")));
+        assertArrayEquals(Files.readAllBytes(patch), Files.readAllBytes(workFolder.resolve("hit")));
+    }
+
+    @Test
+    public void testFetch_CorruptedEntry() throws Exception {
+        PatchCache instance = new PatchCache(cacheFolder, 1000);
+        Path patch = createFile("patch", 100);
+        long checksum = ChecksumAlgorithm.CRC32.checksum(patch);
+        instance.store("patch", patch, 100L, checksum);
+
+        Files.write(cacheFolder.resolve("patch.patch"), new byte[]{1}, StandardOpenOption.APPEND);
+
+        assertFalse(instance.fetch("patch", workFolder.resolve("fetched"), null, checksum));
+        assertFalse(Files.exists(workFolder.resolve("fetched")));
+        assertFalse(Files.exists(cacheFolder.resolve("patch.patch")));
+    }
+
+    @Test(expected = IOException.class)
+    public void testStore_SizeMismatch() throws Exception {
+        PatchCache instance = new PatchCache(cacheFolder, 1000);
+
+        try {
+            instance.store("patch", createFile("patch", 100), 99L, null);
+        } finally {
+            assertFalse(Files.exists(cacheFolder.resolve("patch.patch")));
+        }
+    }
+
+    @Test
+    public void testGetKey_Checksum() throws Exception {
+        URL url = new URL("http://someurl/__patches__/v1_to_v2.tar.xz");
+
+        assertNotEquals(PatchCache.getKey(url, "0x1234"), PatchCache.getKey(url, "0x4321"));
+    }
+
+    @Test
+    public void testEviction_LeastRecentlyUsed() throws Exception {
+        PatchCache instance = new PatchCache(cacheFolder, 250);
+        instance.store("first", createFile("first", 100));
+        instance.store("second", createFile("second", 100));
+        Files.setLastModifiedTime(cacheFolder.resolve("first.patch"), FileTime.fromMillis(1000));
+        Files.setLastModifiedTime(cacheFolder.resolve("second.patch"), FileTime.fromMillis(2000));
+
+        // using first makes second the least recently used entry
+        assertTrue(instance.fetch("first", workFolder.resolve("first_copy")));
+        instance.store("third", createFile("third", 100));
+
+        assertTrue(Files.exists(cacheFolder.resolve("first.patch")));
+        assertFalse(Files.exists(cacheFolder.resolve("second.patch")));
+        assertTrue(Files.exists(cacheFolder.resolve("third.patch")));
+    }
+}
@@ -1,15 +1,29 @@
 package net.brutus5000.bireus;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import net.brutus5000.bireus.data.Repository;
 import net.brutus5000.bireus.mocks.DownloadServiceMock;
+import net.brutus5000.bireus.service.ArchiveService;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.io.FileUtils;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
 
 import java.io.IOException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class TestPreparator {
     private static final String TEMP_PREFIX = "bireus_";
@@ -58,4 +72,127 @@ public class TestPreparator {
 
         return tempDirectory;
     }
+
+    /**
+     * Replaces the version graph of a v1 client repository with the chain v1 -> v2 -> v3.
+     * v3 has the same content as v1, so the server patch v2_to_v1 is served as v2_to_v3.
+     * The graph also has a direct patch v1 -> v3, which is much bigger than the chain and not served.
+     */
+    public static void prepareVersionChain(Path clientRepositoryPath, DownloadServiceMock downloadService) throws IOException {
+        String versionChain = "graph [\n" +
+                "  directed 1\n" +
+                "  node [\n    id 0\n    label \"v1\"\n  ]\n" +
+                "  node [\n    id 1\n    label \"v2\"\n  ]\n" +
+                "  node [\n    id 2\n    label \"v3\"\n  ]\n" +
+                "  edge [\n    source 0\n    target 1\n    size 1000\n  ]\n" +
+                "  edge [\n    source 1\n    target 2\n    size 1000\n  ]\n" +
+                "  edge [\n    source 0\n    target 2\n    size 1000000000\n  ]\n" +
+                "]";
+        Files.write(clientRepositoryPath
+                        .resolve(Repository.BIREUS_INTERAL_FOLDER)
+                        .resolve(Repository.BIREUS_VERSIONS_FILE),
+                versionChain.getBytes(StandardCharsets.UTF_8));
+
+        // the patches are downloaded concurrently, so each action has to serve the requested patch
+        DownloadServiceMock.DownloadAction patchDownload = (url, path) -> {
+            String patchFileName = Paths.get(url.getPath()).getFileName().toString()
+                    .replace(MessageFormat.format(Repository.BIREUS_PATCH_FILE_PATTERN, "v2", "v3"),
+                            MessageFormat.format(Repository.BIREUS_PATCH_FILE_PATTERN, "v2", "v1"));
+            Files.createDirectories(path.getParent());
+            Files.copy(getServerRepositoryPath().resolve(Repository.BIREUS_PATCHES_SUBFOLDER).resolve(patchFileName), path);
+        };
+        downloadService.addDownloadAction(patchDownload);
+        downloadService.addDownloadAction(patchDownload);
+    }
+
+    /**
+     * Replaces the version graph of a v1 client repository with a single patch v1 -> v2, that is much bigger
+     * than the full archive of the latest version v2. Only the full archive is served.
+     */
+    public static void prepareExpensivePatch(Path clientRepositoryPath, DownloadServiceMock downloadService) throws IOException {
+        String versionGraph = "graph [\n" +
+                "  directed 1\n" +
+                "  node [\n    id 0\n    label \"v1\"\n  ]\n" +
+                "  node [\n    id 1\n    label \"v2\"\n    size 2200\n  ]\n" +
+                "  edge [\n    source 0\n    target 1\n    size 1000000000\n  ]\n" +
+                "]";
+        Files.write(clientRepositoryPath
+                        .resolve(Repository.BIREUS_INTERAL_FOLDER)
+                        .resolve(Repository.BIREUS_VERSIONS_FILE),
+                versionGraph.getBytes(StandardCharsets.UTF_8));
+
+        downloadService.addDownloadAction((url, path) -> Files.copy(getLatestArchive(), path));
+    }
+
+    /**
+     * Replaces the version graph of a v1 client repository with the versions v1 and v2 without any patch.
+     * The full archive of the latest version v2 is served.
+     * @param snapshotSize the size of the full archive in the version graph, null if it is unknown
+     */
+    public static void prepareMissingPatch(Path clientRepositoryPath, DownloadServiceMock downloadService, Long snapshotSize) throws IOException {
+        String versionGraph = "graph [\n" +
+                "  directed 1\n" +
+                "  node [\n    id 0\n    label \"v1\"\n  ]\n" +
+                "  node [\n    id 1\n    label \"v2\"\n" + (snapshotSize == null ? "" : "    size " + snapshotSize + "\n") + "  ]\n" +
+                "]";
+        Files.write(clientRepositoryPath
+                        .resolve(Repository.BIREUS_INTERAL_FOLDER)
+                        .resolve(Repository.BIREUS_VERSIONS_FILE),
+                versionGraph.getBytes(StandardCharsets.UTF_8));
+
+        downloadService.addDownloadAction((url, path) -> Files.copy(getLatestArchive(), path));
+    }
+
+    /**
+     * Creates a v1 client repository, where the patch v1 -> v2 fails with a CRC mismatch on changed.txt and on
+     * the additional files, which are copies of changed.txt. The patch is served as first download action.
+     * @param copies the names of the additional files, they are fetched from the v2 folder of the server
+     * @return the client repository
+     */
+    public static Path prepareCrcMismatches(DownloadServiceMock downloadService, String... copies) throws IOException {
+        Path clientRepositoryPath = generateTemporaryClientRepositoryV1();
+        Path patchFolder = Files.createTempDirectory(TEMP_PREFIX);
+        ArchiveService.extractTarXz(getServerRepositoryPath().resolve(Repository.BIREUS_PATCHES_SUBFOLDER)
+                .resolve(MessageFormat.format(Repository.BIREUS_PATCH_FILE_PATTERN, "v1", "v2")), patchFolder);
+
+        ObjectMapper objectMapper = new ObjectMapper();
+        Path descriptorPath = patchFolder.resolve(".bireus");
+        ObjectNode descriptor = (ObjectNode) objectMapper.readTree(descriptorPath.toFile());
+        ArrayNode rootItems = (ArrayNode) descriptor.get("items").get(0).get("items");
+        JsonNode changedItem = null;
+        for (JsonNode item : rootItems) {
+            if (item.get("name").asText().equals("changed.txt")) {
+                changedItem = item;
+            }
+        }
+
+        FileUtils.writeStringToFile(clientRepositoryPath.resolve("changed.txt").toFile(), "Enforce CrcMismatch", "utf-8");
+        for (String copy : copies) {
+            rootItems.add(((ObjectNode) changedItem.deepCopy()).put("name", copy));
+            Files.copy(patchFolder.resolve("changed.txt"), patchFolder.resolve(copy));
+            FileUtils.writeStringToFile(clientRepositoryPath.resolve(copy).toFile(), "Enforce CrcMismatch", "utf-8");
+        }
+        objectMapper.writeValue(descriptorPath.toFile(), descriptor);
+
+        Path patch = Files.createTempFile(TEMP_PREFIX, ".tar.xz");
+        try (TarArchiveOutputStream tarOutputStream = new TarArchiveOutputStream(new XZOutputStream(Files.newOutputStream(patch), new LZMA2Options()));
+             Stream<Path> files = Files.walk(patchFolder)) {
+            List<Path> entries = files.filter(path -> !path.equals(patchFolder)).collect(Collectors.toCollection(ArrayList::new));
+            for (Path entry : entries) {
+                tarOutputStream.putArchiveEntry(new TarArchiveEntry(entry.toFile(), patchFolder.relativize(entry).toString()));
+                if (Files.isRegularFile(entry)) {
+                    Files.copy(entry, tarOutputStream);
+                }
+                tarOutputStream.closeArchiveEntry();
+            }
+        }
+        FileUtils.deleteQuietly(patchFolder.toFile());
+
+        downloadService.addReadAction(url -> Files.readAllBytes(getServerRepositoryPath().resolve(Repository.BIREUS_INFO_FILE)));
+        downloadService.addDownloadAction((url, path) -> {
+            Files.createDirectories(path.getParent());
+            Files.move(patch, path);
+        });
+        return clientRepositoryPath;
+    }
 }
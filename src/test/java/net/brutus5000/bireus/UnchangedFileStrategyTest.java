@@ -0,0 +1,76 @@
+package net.brutus5000.bireus;
+
+import net.brutus5000.bireus.patching.UnchangedFileStrategy;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UnchangedFileStrategyTest {
+    private static final byte[] CONTENT = "unchanged".getBytes();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path basePath;
+    private Path patchPath;
+
+    @Before
+    public void setUp() throws Exception {
+        basePath = Files.write(temporaryFolder.newFolder("base").toPath().resolve("file.txt"), CONTENT);
+        patchPath = temporaryFolder.newFolder("patch").toPath().resolve("file.txt");
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        UnchangedFileStrategy.COPY.materialize(basePath, patchPath);
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(patchPath));
+        assertFalse(Files.isSameFile(basePath, patchPath));
+
+        // the base version stays untouched
+        Files.write(patchPath, "modified".getBytes());
+        assertArrayEquals(CONTENT, Files.readAllBytes(basePath));
+    }
+
+    @Test
+    public void testHardLink() throws Exception {
+        UnchangedFileStrategy.HARD_LINK.materialize(basePath, patchPath);
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(patchPath));
+        assertTrue(Files.isSameFile(basePath, patchPath));
+    }
+
+    @Test
+    public void testHardLink_FallbackToCopy() throws Exception {
+        // a zip file system doesn't support links, like a repository spanning multiple file systems
+        URI zipUri = URI.create("jar:" + temporaryFolder.getRoot().toPath().resolve("patch.zip").toUri());
+        try (FileSystem zipFileSystem = FileSystems.newFileSystem(zipUri, Collections.singletonMap("create", "true"))) {
+            Path zipPatchPath = zipFileSystem.getPath("/file.txt");
+
+            UnchangedFileStrategy.HARD_LINK.materialize(basePath, zipPatchPath);
+
+            assertArrayEquals(CONTENT, Files.readAllBytes(zipPatchPath));
+        }
+        assertArrayEquals(CONTENT, Files.readAllBytes(basePath));
+    }
+
+    @Test
+    public void testMove() throws Exception {
+        UnchangedFileStrategy.MOVE.materialize(basePath, patchPath);
+
+        assertArrayEquals(CONTENT, Files.readAllBytes(patchPath));
+        assertFalse(Files.exists(basePath));
+    }
+}
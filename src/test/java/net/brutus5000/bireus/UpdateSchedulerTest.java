@@ -0,0 +1,96 @@
+package net.brutus5000.bireus;
+
+import net.brutus5000.bireus.service.CheckoutSettings;
+import net.brutus5000.bireus.service.RateLimiter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class UpdateSchedulerTest {
+    private UpdateScheduler instance;
+    private List<String> checkedOutVersions;
+
+    @Before
+    public void setUp() {
+        instance = new UpdateScheduler(1, 4, 0, 0);
+        checkedOutVersions = Collections.synchronizedList(new ArrayList<>());
+    }
+
+    @After
+    public void tearDown() {
+        instance.close();
+    }
+
+    private BireusClient mockClient(CountDownLatch release) throws Exception {
+        BireusClient client = mock(BireusClient.class);
+        when(client.getSettings()).thenReturn(new CheckoutSettings());
+        doAnswer(invocation -> {
+            release.await(30, TimeUnit.SECONDS);
+            checkedOutVersions.add((String) invocation.getArguments()[0]);
+            return null;
+        }).when(client).checkoutVersion(anyString());
+        return client;
+    }
+
+    @Test
+    public void testSchedule_Priority() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        BireusClient client = mockClient(release);
+
+        CompletableFuture<Void> blocking = instance.scheduleVersion(client, "running", 0);
+        CompletableFuture<Void> low = instance.scheduleVersion(client, "low", 1);
+        CompletableFuture<Void> high = instance.scheduleVersion(client, "high", 10);
+        release.countDown();
+
+        CompletableFuture.allOf(blocking, low, high).get(30, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("running", "high", "low"), checkedOutVersions);
+    }
+
+    @Test
+    public void testSchedule_AppliesLimitsWhileRunning() throws Exception {
+        BireusClient client = mock(BireusClient.class);
+        CheckoutSettings settings = new CheckoutSettings();
+        settings.setPatchThreads(16);
+        when(client.getSettings()).thenReturn(settings);
+        List<Object> appliedLimits = new ArrayList<>();
+        doAnswer(invocation -> {
+            appliedLimits.add(settings.getPatchThreads());
+            appliedLimits.add(settings.getDiskWriteLimiter());
+            return null;
+        }).when(client).checkoutVersion(anyString());
+
+        instance.scheduleVersion(client, "v1", 0).get(30, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList(4, instance.getDiskWriteLimiter()), appliedLimits);
+        assertEquals(16, settings.getPatchThreads());
+        assertNull(settings.getDiskWriteLimiter());
+    }
+
+    @Test
+    public void testRateLimiter() throws Exception {
+        RateLimiter rateLimiter = new RateLimiter(1_000_000);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            rateLimiter.acquire(20_000);
+        }
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+    }
+}
@@ -6,19 +6,20 @@ import net.brutus5000.bireus.service.DownloadService;
 import java.io.IOException;
 import java.net.URL;
 import java.nio.file.Path;
-import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedDeque;
 
 /**
  * A simple DownloadService mock, where you can add all actions to a queue
+ * The actions run concurrently on the calling threads, so concurrent downloads take the actions in undefined order
  */
 public class DownloadServiceMock implements DownloadService {
-    private Deque<ReadAction> readActions = new ArrayDeque<>();
-    private Deque<DownloadAction> downloadActions = new ArrayDeque<>();
+    private final Deque<ReadAction> readActions = new ConcurrentLinkedDeque<>();
+    private final Deque<DownloadAction> downloadActions = new ConcurrentLinkedDeque<>();
 
     public void addDownloadAction(DownloadAction action) {
-        downloadActions.add(action);
+        downloadActions.addLast(action);
     }
 
     public void addReadAction(ReadAction action) {
@@ -27,8 +28,13 @@ public class DownloadServiceMock implements DownloadService {
 
     @Override
     public void download(URL url, Path path) throws DownloadException {
+        DownloadAction action = downloadActions.pollFirst();
+        if (action == null) {
+            throw new DownloadException(new NoSuchElementException("No download action left"), url);
+        }
+
         try {
-            downloadActions.removeFirst().download(url, path);
+            action.download(url, path);
         } catch (IOException e) {
             throw new DownloadException(e, url);
         }
@@ -36,10 +42,14 @@ public class DownloadServiceMock implements DownloadService {
 
     @Override
     public byte[] read(URL url) throws DownloadException {
+        ReadAction action = readActions.pollFirst();
+        if (action == null) {
+            throw new DownloadException(new NoSuchElementException("No read action left"), url);
+        }
 
         try {
-            return readActions.removeFirst().read(url);
-        } catch (NoSuchElementException | IOException e) {
+            return action.read(url);
+        } catch (IOException e) {
             throw new DownloadException(e, url);
         }
     }